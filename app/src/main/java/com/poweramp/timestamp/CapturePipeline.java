@@ -0,0 +1,560 @@
+package com.poweramp.timestamp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous capture path for the floating button.
+ *
+ * A tap only records its event time in a lock-free {@link TapRing} and wakes a dedicated worker
+ * looper, which drains taps in sequence order into a {@link CaptureScheduler}. That answers
+ * each from the {@link PositionEstimator} at the tap's own event time, less the user's
+ * calibrated reaction time ({@link #KEY_REACTION_MS}), so bursts never share a stale position,
+ * or parks it until a reading arrives. Position syncs go to whichever {@link PositionSource}
+ * {@link PositionSources} currently rates best, PowerAmp's media session if it is reachable,
+ * else the {@code TPOS_SYNC} broadcast round-trip; they also run in the background to correct
+ * drift. The service registers its PowerAmp receiver on the worker looper, so sync replies reach
+ * the scheduler without a hop. Nothing ever waits or touches the disk on the main thread.
+ * Results are delivered to the {@link Listener} on the main thread.
+ *
+ * The disk side lives in {@link MarkerRecorder}: each capture is committed to the
+ * {@link MarkerJournal} before it is buffered for the text files, and a parked capture is held
+ * in a second journal at its estimate as soon as it parks. This class decides when buffered
+ * lines are flushed (coalesced) and when files are closed (idle, shutdown).
+ */
+class CapturePipeline {
+
+    interface Listener {
+        void onCaptureSaved(String timestamp, boolean createdFile);
+
+        /** Sorted mode: the track's file already has a marker at (or near) this position. */
+        void onCaptureDuplicate(String timestamp);
+
+        void onCaptureFailed(String message);
+
+        /** The current track's newest markers, after a track change or a capture; null if no track. */
+        void onRecentMarkers(RecentMarkers.Snapshot recent);
+    }
+
+    private static final String TAG = "CapturePipeline";
+
+    /** What produced a capture, passed to {@link #submit}. */
+    static final int TRIGGER_TOUCH = 0;
+    static final int TRIGGER_KEY = 1;
+    /** Preference: taps closer together than this many ms are treated as one (0 keeps all). */
+    static final String KEY_DEDUP_MS = "dedup_tolerance_ms";
+    /** Preference selecting {@code hh:mm:ss.SSS} instead of {@code hh:mm:ss} markers. */
+    static final String KEY_MILLIS = "timestamp_millis";
+    /** Preference holding a {@link MarkerWriter.FsyncPolicy} name. */
+    static final String KEY_FSYNC_POLICY = "fsync_policy";
+    /** Preference keeping each marker file sorted and free of duplicates. */
+    static final String KEY_SORTED = "sorted_markers";
+    /** Preference: in sorted mode, markers this many ms or closer count as duplicates. */
+    static final String KEY_SORT_TOLERANCE_MS = "sorted_tolerance_ms";
+    private static final String KEY_SORTED_MIGRATED = "sorted_markers_migrated";
+    /** Preference holding a document tree URI; markers go there instead of {@link #MARKER_DIR}. */
+    static final String KEY_TREE_URI = "marker_tree_uri";
+    /** Preference holding a {@link KeyTrigger.Mode} name: which hardware keys capture. */
+    static final String KEY_HARDWARE_TRIGGER = "hardware_trigger";
+    /** Preference: the user's reaction time in ms; markers are placed this long before the tap. */
+    static final String KEY_REACTION_MS = "reaction_offset_ms";
+    static final String MARKER_DIR = "/storage/emulated/0/_Edit-times";
+    private static final long DRIFT_SYNC_INTERVAL_MS = 15000;
+    private static final long COALESCE_MS = 200;
+    private static final long IDLE_CLOSE_MS = 30000;
+    private static final int MAX_OPEN_FILES = 4;
+    private static final int JOURNAL_CAPACITY = 4096;
+    /** Parked captures journaled at once; more than this at a time are only held in memory. */
+    private static final int HOLD_JOURNAL_CAPACITY = 256;
+    private static final int TAP_RING_CAPACITY = 64;
+    private static final int COMPACT_BATCH = 32;
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread workerThread;
+    private final Handler workerHandler;
+    private final TapRing taps = new TapRing(TAP_RING_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final PositionEstimator estimator = new PositionEstimator();
+    private final TposSyncSource tposSource;
+    private final MediaSessionSource mediaSource;
+    private final PositionSources sources;
+    private final CaptureScheduler scheduler;
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    private final TraceRecorder trace = TraceRecorder.get();
+
+    // Only touched on the worker looper.
+    private final TrackResolver resolver = new TrackResolver();
+    private MarkerStore store;
+    private MarkerRecorder recorder;
+    private boolean flushScheduled;
+    private SharedPreferences prefs;
+    private long sortToleranceMs = -1;
+    private List<String> compactNames;
+    private int compactCursor;
+    private int compacted;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            try {
+                recorder.materialize();
+            } catch (IOException e) {
+                Log.e(TAG, "❌ Error writing markers", e);
+                postFailure("❌ Error: " + e.getMessage());
+            }
+        }
+    };
+
+    private final Runnable idleCloseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled = false;
+            workerHandler.removeCallbacks(flushRunnable);
+            try {
+                recorder.closeFiles();
+                trace.record(TraceRecorder.Event.FILES_CLOSED, 0);
+            } catch (IOException e) {
+                Log.e(TAG, "❌ Error closing marker files", e);
+            }
+        }
+    };
+
+    // Sorts pre-existing marker files a batch at a time so captures can run in between
+    private final Runnable compactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int end = Math.min(compactCursor + COMPACT_BATCH, compactNames.size());
+            for (; compactCursor < end; compactCursor++) {
+                String name = compactNames.get(compactCursor);
+                try {
+                    if (recorder.compactFile(name, sortToleranceMs)) {
+                        compacted++;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "❌ Error sorting " + name, e);
+                }
+            }
+            if (compactCursor < compactNames.size()) {
+                workerHandler.post(this);
+                return;
+            }
+
+            Log.d(TAG, "🧹 Sorted " + compacted + " of " + compactNames.size() + " marker files");
+            prefs.edit().putBoolean(KEY_SORTED_MIGRATED, true).apply();
+            MarkerIndex index = recorder.getIndex();
+            if (compacted > 0 && index != null) {
+                try {
+                    index.rebuild(store);
+                } catch (IOException e) {
+                    Log.e(TAG, "❌ Error rebuilding marker index", e);
+                }
+                publishIndex();
+            }
+            compactNames = null;
+        }
+    };
+
+    private final TapRing.Sink tapSink = new TapRing.Sink() {
+        @Override
+        public void onTap(long seq, long eventTime, int tag) {
+            scheduler.begin(seq, eventTime, tag);
+        }
+    };
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            taps.drain(tapSink);
+        }
+    };
+
+    private final Runnable resolveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            PlaybackState state = PlaybackState.current();
+            // Not stale means a capture got there first and has already published the track
+            if (resolver.isStale(state)) {
+                long start = System.nanoTime();
+                TrackResolver.ResolvedTrack track = resolver.resolve(state);
+                metrics.resolve.recordNanos(System.nanoTime() - start);
+                trace.record(TraceRecorder.Event.TRACK_RESOLVED, resolver.getHits(), resolver.getMisses());
+                publishRecent(track == null ? null : track.name);
+            }
+        }
+    };
+
+    // Resolve on track change, not on tap; publishers may be on any thread
+    private final PlaybackState.Listener trackListener = new PlaybackState.Listener() {
+        private long lastTrackGeneration = -1;
+
+        @Override
+        public synchronized void onPlaybackStateChanged(PlaybackState state) {
+            if (state.trackGeneration != lastTrackGeneration) {
+                lastTrackGeneration = state.trackGeneration;
+                workerHandler.removeCallbacks(resolveRunnable);
+                workerHandler.post(resolveRunnable);
+            }
+        }
+    };
+
+    // Events may be ingested on the main thread (manifest receiver) or on the worker looper
+    private final PowerAmpIngest.Listener ingestListener = new PowerAmpIngest.Listener() {
+        @Override
+        public void onPowerAmpEvent(final PowerAmpEvent event, final PlaybackState state) {
+            if (Looper.myLooper() == workerHandler.getLooper()) {
+                scheduler.onEvent(event, state);
+            } else {
+                workerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduler.onEvent(event, state);
+                    }
+                });
+            }
+        }
+    };
+
+    // Readings pushed by the media session; PowerAmp broadcasts come in through handleEvent
+    private final PositionSource.Listener positionListener = new PositionSource.Listener() {
+        @Override
+        public void onPosition(PositionSource source, long positionMs, boolean playing, float speed, long uptime,
+                boolean reply) {
+            scheduler.onPosition(source, positionMs, playing, speed, uptime, reply);
+        }
+    };
+
+    private final CaptureScheduler.Host schedulerHost = new CaptureScheduler.Host() {
+        @Override
+        public long uptime() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void scheduleTimeout(final CaptureScheduler.Capture capture, long delayMs) {
+            workerHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.expire(capture);
+                }
+            }, capture, SystemClock.uptimeMillis() + delayMs);
+        }
+
+        @Override
+        public void cancelTimeout(CaptureScheduler.Capture capture) {
+            workerHandler.removeCallbacksAndMessages(capture);
+        }
+
+        @Override
+        public void onParked(CaptureScheduler.Capture capture) {
+            try {
+                capture.journalSeq = recorder.hold(PlaybackState.current(), capture.fallbackMs,
+                        System.currentTimeMillis());
+            } catch (IOException e) {
+                // Still captured once the reading arrives; only a crash before then loses it
+                Log.e(TAG, "❌ Error journaling parked capture", e);
+            }
+        }
+
+        @Override
+        public void beforeSync() {
+            // Retried here because notification access may have been granted since start-up
+            mediaSource.connect();
+        }
+
+        @Override
+        public void onCapture(CaptureScheduler.Capture capture, long positionMs, PlaybackState state) {
+            complete(capture, state, positionMs);
+        }
+
+        @Override
+        public void onCaptureLost(CaptureScheduler.Capture capture, boolean timedOut) {
+            if (timedOut) {
+                Log.e(TAG, "❌ Position sync timeout");
+                postFailure("⚠️ Position update timed out");
+            } else {
+                postFailure("⚠️ Too many pending captures");
+            }
+        }
+    };
+
+    private final Runnable driftSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduler.requestDriftSync();
+            workerHandler.postDelayed(this, DRIFT_SYNC_INTERVAL_MS);
+        }
+    };
+
+    CapturePipeline(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        workerThread = new HandlerThread("capture-worker");
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+        tposSource = new TposSyncSource(this.context);
+        mediaSource = new MediaSessionSource(this.context, workerHandler, positionListener);
+        // The session needs no round-trip, so it wins whenever it is connected and answering
+        sources = new PositionSources(mediaSource, tposSource);
+        scheduler = new CaptureScheduler(estimator, sources, tposSource, schedulerHost);
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prefs = CapturePipeline.this.context
+                        .getSharedPreferences(PlaybackStatePersistence.PREFS_NAME, Context.MODE_PRIVATE);
+                scheduler.setDedupToleranceMs(prefs.getInt(KEY_DEDUP_MS, 0));
+                scheduler.setReactionOffsetMs(prefs.getInt(KEY_REACTION_MS, 0));
+                MarkerWriter.FsyncPolicy fsync =
+                        MarkerWriter.FsyncPolicy.parse(prefs.getString(KEY_FSYNC_POLICY, null));
+                store = openStore(CapturePipeline.this.context, prefs);
+                if (prefs.getBoolean(KEY_SORTED, false)) {
+                    sortToleranceMs = Math.max(0, prefs.getInt(KEY_SORT_TOLERANCE_MS, 0));
+                }
+                recorder = new MarkerRecorder(resolver,
+                        new TimeFormatter(prefs.getBoolean(KEY_MILLIS, false)),
+                        new MarkerWriter(store, MAX_OPEN_FILES, fsync, sortToleranceMs),
+                        openJournal("markers.journal", JOURNAL_CAPACITY),
+                        openJournal("markers.held", HOLD_JOURNAL_CAPACITY),
+                        openIndex());
+                try {
+                    // Replay whatever a previous process captured but never got into the text files
+                    int recovered = recorder.replay();
+                    if (recovered > 0) {
+                        Log.d(TAG, "♻️ Recovered " + recovered + " markers from journal");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "❌ Error replaying journal", e);
+                }
+                publishIndex();
+                startCompaction();
+                // Show the track that is already playing; later ones arrive via trackListener
+                resolveRunnable.run();
+                mediaSource.connect();
+                metrics.positionSources = sources;
+                metrics.positionEstimator = estimator;
+            }
+        });
+        workerHandler.postDelayed(driftSyncRunnable, DRIFT_SYNC_INTERVAL_MS);
+        PlaybackState.addListener(trackListener);
+        PowerAmpIngest.get().addListener(ingestListener);
+    }
+
+    /** Sorts every existing marker file once after sorted mode is switched on. */
+    private void startCompaction() {
+        boolean migrated = prefs.getBoolean(KEY_SORTED_MIGRATED, false);
+        if (sortToleranceMs < 0) {
+            // Files written in tap order from now on will need sorting again
+            if (migrated) prefs.edit().putBoolean(KEY_SORTED_MIGRATED, false).apply();
+            return;
+        }
+        if (migrated) return;
+        MarkerIndex index = recorder.getIndex();
+        try {
+            // Only files with markers can be out of order, and the index already knows them
+            compactNames = index != null ? trackNames(index) : store.names();
+        } catch (IOException e) {
+            Log.e(TAG, "❌ Cannot list marker files", e);
+            return;
+        }
+        compactCursor = 0;
+        compacted = 0;
+        workerHandler.post(compactRunnable);
+    }
+
+    /** A copy, as captures keep adding tracks while the compaction runs. */
+    private static List<String> trackNames(MarkerIndex index) {
+        List<String> names = new ArrayList<>(index.trackCount());
+        for (MarkerIndex.Track track : index.tracks()) {
+            names.add(track.name);
+        }
+        return names;
+    }
+
+    /** Copies the index totals into {@link CaptureMetrics} for the metrics panel. */
+    private void publishIndex() {
+        MarkerIndex index = recorder.getIndex();
+        if (index == null) return;
+        metrics.indexedTracks.set(index.trackCount());
+        metrics.indexedMarkers.set(index.markerCount());
+        MarkerIndex.Track latest = index.latest();
+        if (latest != null) {
+            metrics.latestPositionMs = latest.lastPositionMs;
+            metrics.latestTrack = latest.name;
+        }
+    }
+
+    /** The folder chosen through the document picker if there is one, else {@link #MARKER_DIR}. */
+    static MarkerStore openStore(Context context, SharedPreferences prefs) {
+        String tree = prefs.getString(KEY_TREE_URI, null);
+        if (tree == null) return new FileMarkerStore(new File(MARKER_DIR));
+        return new DocumentMarkerStore(new SafMarkerProvider(context, Uri.parse(tree)));
+    }
+
+    private MarkerJournal openJournal(String name, int capacity) {
+        File filesDir = context.getFilesDir();
+        try {
+            return new MarkerJournal(new File(filesDir, name), new File(filesDir, name + ".names"), capacity);
+        } catch (IOException e) {
+            Log.e(TAG, "❌ Journal " + name + " unavailable, writing markers directly", e);
+            return null;
+        }
+    }
+
+    private MarkerIndex openIndex() {
+        File filesDir = context.getFilesDir();
+        try {
+            MarkerIndex index = new MarkerIndex(new File(filesDir, "markers.index"),
+                    new File(filesDir, "markers.index.log"));
+            if (!index.hasSnapshot()) {
+                // First run with the index: seed it from the existing marker files
+                int files = index.rebuild(store);
+                Log.d(TAG, "📇 Indexed " + index.markerCount() + " markers from " + files + " files");
+            }
+            return index;
+        } catch (IOException e) {
+            Log.e(TAG, "❌ Marker index unavailable", e);
+            return null;
+        }
+    }
+
+    /** Looper handler the PowerAmp receiver should be registered on. */
+    Handler getHandler() {
+        return workerHandler;
+    }
+
+    /**
+     * Queues a capture for the playback position at {@code eventTime} (uptime millis, as carried
+     * by input events); {@code trigger} is {@link #TRIGGER_TOUCH} or {@link #TRIGGER_KEY}. Call
+     * from the main thread only; it never blocks. Returns false when the tap ring is full.
+     */
+    boolean submit(long eventTime, int trigger) {
+        long seq = taps.offer(eventTime, trigger);
+        if (seq < 0) return false;
+        if (drainScheduled.compareAndSet(false, true)) {
+            workerHandler.post(drainRunnable);
+        }
+        return true;
+    }
+
+    private void complete(CaptureScheduler.Capture capture, PlaybackState state, long position) {
+        try {
+            MarkerRecorder.Result result =
+                    recorder.resolve(capture.journalSeq, state, position, System.currentTimeMillis());
+            if (result == null) {
+                Log.e(TAG, "❌ No track found!");
+                postFailure("❌ No track detected");
+                return;
+            }
+            if (result.duplicate) {
+                postDuplicate(result.timestamp);
+                publishRecent(result.track.name);
+                return;
+            }
+            scheduleFlush();
+            publishIndex();
+            metrics.captures.incrementAndGet();
+            LatencyHistogram latency = capture.trigger == TRIGGER_KEY ? metrics.keyToSaved : metrics.tapToSaved;
+            latency.recordMillis(SystemClock.uptimeMillis() - capture.tapTime);
+            trace.record(TraceRecorder.Event.CAPTURE_SAVED, position, result.createdFile ? 1 : 0);
+            postSaved(result.timestamp, result.createdFile);
+            publishRecent(result.track.name);
+        } catch (Exception e) {
+            Log.e(TAG, "❌ Error saving file", e);
+            postFailure("❌ Error: " + e.getMessage());
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            workerHandler.postDelayed(flushRunnable, COALESCE_MS);
+        }
+        workerHandler.removeCallbacks(idleCloseRunnable);
+        workerHandler.postDelayed(idleCloseRunnable, IDLE_CLOSE_MS);
+    }
+
+    /** Loads (first time only) and posts {@code name}'s recent markers; null clears them. */
+    private void publishRecent(String name) {
+        RecentMarkers.Snapshot recent = null;
+        if (name != null) {
+            try {
+                recent = recorder.recent(name);
+            } catch (IOException e) {
+                Log.e(TAG, "❌ Error loading recent markers for " + name, e);
+                return;
+            }
+        }
+        final RecentMarkers.Snapshot snapshot = recent;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onRecentMarkers(snapshot);
+            }
+        });
+    }
+
+    private void postSaved(final String timestamp, final boolean createdFile) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCaptureSaved(timestamp, createdFile);
+            }
+        });
+    }
+
+    private void postDuplicate(final String timestamp) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCaptureDuplicate(timestamp);
+            }
+        });
+    }
+
+    private void postFailure(final String message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCaptureFailed(message);
+            }
+        });
+    }
+
+    /** Drops pending captures, closes open marker files and stops the worker looper. */
+    void shutdown() {
+        metrics.positionSources = null;
+        metrics.positionEstimator = null;
+        PlaybackState.removeListener(trackListener);
+        PowerAmpIngest.get().removeListener(ingestListener);
+        workerHandler.removeCallbacks(flushRunnable);
+        workerHandler.removeCallbacks(idleCloseRunnable);
+        workerHandler.removeCallbacks(compactRunnable);
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mediaSource.disconnect();
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing marker recorder", e);
+                }
+            }
+        });
+        workerThread.quitSafely();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+}
@@ -3,133 +3,184 @@ package com.poweramp.timestamp;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.graphics.PixelFormat;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.provider.Settings;
+import android.os.Process;
+import android.os.StrictMode;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.ImageButton;
+import android.widget.TextView;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class FloatingButtonService extends Service {
 
     private static final String TAG = "FloatingButtonService";
-    private static boolean running = false;
     private WindowManager windowManager;
     private View floatingView;
-    private String currentFilename = "";
-    private PowerAmpBroadcastReceiver powerAmpReceiver;
+    private TextView recentMarkersView;
+    private WindowManager.LayoutParams overlayParams;
+    private boolean overlayAttached;
+    private PowerAmpReceiver powerAmpReceiver;
+    private CapturePipeline capturePipeline;
+    private Toast toast;
+    private NotificationAccess notificationAccess;
     private Handler handler = new Handler(Looper.getMainLooper());
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    private long coldStartBase;
 
-    private static final String POWERAMP_PACKAGE = "com.maxmpz.audioplayer";
-    private static final String POWERAMP_API_RECEIVER = "com.maxmpz.audioplayer.player.PowerampAPIReceiver";
-    private static final String ACTION_API_COMMAND = POWERAMP_PACKAGE + ".API_COMMAND";
-    private static final String ACTION_TRACK_POS_SYNC = POWERAMP_PACKAGE + ".TPOS_SYNC";
-    private static final String EXTRA_COMMAND = "cmd";
-    private static final int COMMAND_POS_SYNC = 16;
+    private static final AtomicBoolean FIRST_CREATE = new AtomicBoolean(true);
 
-    public static boolean isRunning() {
-        return running;
-    }
+    // Volume-key chord or headset button, recognized by ForegroundDetector
+    private final HardwareTrigger.Listener hardwareListener = new HardwareTrigger.Listener() {
+        @Override
+        public void onHardwareTrigger(long eventTime) {
+            capture(eventTime, CapturePipeline.TRIGGER_KEY);
+        }
+    };
 
-    private class PowerAmpBroadcastReceiver extends BroadcastReceiver {
+    private final Runnable deferredInit = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action == null) return;
-
-            Log.d(TAG, "📻 Received broadcast: " + action);
-            
-            Bundle extras = intent.getExtras();
-            if (extras != null) {
-                int positionSeconds = extras.getInt("pos", -1);
-                long positionMs = -1;
-                
-                if (positionSeconds >= 0) {
-                    positionMs = positionSeconds * 1000L;
-                    Log.d(TAG, "✓ Position: " + positionSeconds + "s = " + positionMs + "ms = " + formatTime(positionMs));
-                }
-                
-                String track = "";
-                if (extras.containsKey("track")) {
-                    Object trackObj = extras.get("track");
-                    if (trackObj instanceof String) {
-                        track = (String) trackObj;
-                    } else if (trackObj instanceof Bundle) {
-                        Bundle trackBundle = (Bundle) trackObj;
-                        track = trackBundle.getString("title", "");
-                    }
-                }
-                
-                String path = extras.getString("path", "");
-                
-                SharedPreferences prefs = context.getSharedPreferences("poweramp_data", Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = prefs.edit();
-                
-                if (positionMs >= 0) {
-                    editor.putLong("playback_position", positionMs);
-                    editor.putLong("last_position_update", System.currentTimeMillis());
-                }
-                
-                if (!track.isEmpty()) {
-                    editor.putString("broadcast_track", track);
-                }
-                
-                if (!path.isEmpty()) {
-                    editor.putString("broadcast_path", path);
-                }
-                
-                editor.putLong("last_broadcast_time", System.currentTimeMillis());
-                editor.apply();
-            }
+        public void run() {
+            ensureStarted();
         }
+    };
+
+    // Detach the overlay while another app is on screen so it costs nothing there
+    private final ForegroundApp.Listener foregroundListener = new ForegroundApp.Listener() {
+        @Override
+        public void onForegroundChanged(String packageName, long eventTime) {
+            setOverlayAttached(ForegroundApp.isPowerAmp(packageName), eventTime);
+        }
+    };
+
+    public static boolean isRunning() {
+        return ServiceStatus.current().isActive();
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        running = true;
+        long createTime = SystemClock.uptimeMillis();
+        // A restart inside a live process is timed from onCreate instead of process start
+        coldStartBase = FIRST_CREATE.compareAndSet(true, false) ? Process.getStartUptimeMillis() : createTime;
+        metrics.coldStartCreate.set(createTime - coldStartBase);
+        ServiceStatus.setState(ServiceStatus.State.STARTING);
         Log.d(TAG, "🚀 Service created");
 
-        powerAmpReceiver = new PowerAmpBroadcastReceiver();
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            // Flag any disk access that sneaks back onto the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+
+        // Only what the user sees goes first; everything else waits for the next loop turn
+        startForeground(1, createNotification());
+        createOverlay();
+        setOverlayAttached(ForegroundApp.isPowerAmp(ForegroundApp.current()), -1);
+        ForegroundApp.addListener(foregroundListener);
+        HardwareTrigger.addListener(hardwareListener);
+        metrics.coldStartOverlay.set(SystemClock.uptimeMillis() - coldStartBase);
+        handler.post(deferredInit);
+    }
+
+    /** Builds the capture path; runs after the overlay is up, or earlier if a tap needs it. */
+    private void ensureStarted() {
+        if (capturePipeline != null) return;
+        handler.removeCallbacks(deferredInit);
+        PlaybackStatePersistence.install(this);
+
+        capturePipeline = new CapturePipeline(this, new CapturePipeline.Listener() {
+            @Override
+            public void onCaptureSaved(String timestamp, boolean createdFile) {
+                ServiceStatus.onCaptureSaved(timestamp);
+                showToast(createdFile ? "✅ Created file!" : "✅ Saved: " + timestamp, Toast.LENGTH_SHORT);
+            }
+
+            @Override
+            public void onCaptureDuplicate(String timestamp) {
+                showToast("↩️ Already marked: " + timestamp, Toast.LENGTH_SHORT);
+            }
+
+            @Override
+            public void onCaptureFailed(String message) {
+                showToast(message, Toast.LENGTH_SHORT);
+            }
+
+            @Override
+            public void onRecentMarkers(RecentMarkers.Snapshot recent) {
+                showRecentMarkers(recent);
+            }
+        });
+
+        powerAmpReceiver = new PowerAmpReceiver();
         IntentFilter filter = new IntentFilter();
-        filter.addAction("com.maxmpz.audioplayer.STATUS_CHANGED");
-        filter.addAction("com.maxmpz.audioplayer.PLAYING_MODE_CHANGED");
-        filter.addAction("com.maxmpz.audioplayer.TRACK_CHANGED");
-        filter.addAction(ACTION_TRACK_POS_SYNC);
+        filter.addAction(PowerAmpEvent.ACTION_STATUS_CHANGED);
+        filter.addAction(PowerAmpEvent.ACTION_PLAYING_MODE_CHANGED);
+        filter.addAction(PowerAmpEvent.ACTION_TRACK_CHANGED);
+        filter.addAction(PowerAmpEvent.ACTION_TRACK_POS_SYNC);
         
+        // Deliver on the capture looper so sync replies complete pending captures directly
+        Handler captureHandler = capturePipeline.getHandler();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            registerReceiver(powerAmpReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+            registerReceiver(powerAmpReceiver, filter, null, captureHandler, Context.RECEIVER_NOT_EXPORTED);
         } else {
-            registerReceiver(powerAmpReceiver, filter);
+            registerReceiver(powerAmpReceiver, filter, null, captureHandler);
         }
         Log.d(TAG, "✓ Registered PowerAmp broadcast receiver");
 
+        // The worker runs its own setup (journal replay) first, so this marks the path ready
+        captureHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                metrics.coldStartReady.set(SystemClock.uptimeMillis() - coldStartBase);
+                Log.d(TAG, "⏱️ Ready " + metrics.coldStartReady.get() + " ms after start");
+            }
+        });
+
+        notificationAccess = new NotificationAccess(this, handler, new NotificationAccess.Listener() {
+            @Override
+            public void onAccessChanged(boolean granted) {
+                publishAccessState(granted);
+            }
+        });
+        notificationAccess.start();
+        
+        if (!refreshAccessState()) {
+            Toast.makeText(this, "⚠️ Tap button to enable Notification Access", Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, "✓ Ready! Tap to save timestamps", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void createOverlay() {
         floatingView = LayoutInflater.from(this).inflate(R.layout.floating_button, null);
         ImageButton btnTimestamp = floatingView.findViewById(R.id.btnTimestamp);
+        recentMarkersView = floatingView.findViewById(R.id.tvRecentMarkers);
         
         int layoutType = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O 
             ? WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY 
             : WindowManager.LayoutParams.TYPE_PHONE;
 
-        WindowManager.LayoutParams params = new WindowManager.LayoutParams(
+        overlayParams = new WindowManager.LayoutParams(
                 WindowManager.LayoutParams.WRAP_CONTENT,
                 WindowManager.LayoutParams.WRAP_CONTENT,
                 layoutType,
@@ -137,18 +188,27 @@ public class FloatingButtonService extends Service {
                 PixelFormat.TRANSLUCENT
         );
 
-        params.gravity = Gravity.TOP | Gravity.END;
-        params.x = 20;
-        params.y = 300;
+        overlayParams.gravity = Gravity.TOP | Gravity.END;
+        overlayParams.x = 20;
+        overlayParams.y = 300;
 
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
         
+        // Capture on touch-down with the event's own timestamp; bursts of taps queue up in order
+        btnTimestamp.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    capture(event.getEventTime(), CapturePipeline.TRIGGER_TOUCH);
+                }
+                return false;
+            }
+        });
+
         btnTimestamp.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Log.d(TAG, "🖱️ Button clicked!");
-                
-                if (!isNotificationAccessGranted()) {
+                if (!refreshAccessState()) {
                     Toast.makeText(FloatingButtonService.this, 
                         "⚠️ Notification Access needed!\n\nOpening settings...", 
                         Toast.LENGTH_LONG).show();
@@ -161,157 +221,107 @@ public class FloatingButtonService extends Service {
                             startActivity(intent);
                         }
                     }, 1500);
-                    return;
                 }
-                
-                saveTimestamp();
             }
         });
 
-        windowManager.addView(floatingView, params);
-        startForeground(1, createNotification());
-        
-        if (!isNotificationAccessGranted()) {
-            Toast.makeText(this, "⚠️ Tap button to enable Notification Access", Toast.LENGTH_LONG).show();
-        } else {
-            Toast.makeText(this, "✓ Ready! Tap to save timestamps", Toast.LENGTH_SHORT).show();
-        }
     }
 
-    private boolean isNotificationAccessGranted() {
-        try {
-            String enabledListeners = Settings.Secure.getString(getContentResolver(), "enabled_notification_listeners");
-            return enabledListeners != null && enabledListeners.contains(getPackageName());
-        } catch (Exception e) {
-            return false;
+    /**
+     * Queues a capture for the input event at {@code eventTime}; the overlay and hardware keys
+     * take the same path. Without notification access a tap only leads to the settings (see the
+     * click listener), while a key press just says what is missing.
+     */
+    private void capture(long eventTime, int trigger) {
+        boolean key = trigger == CapturePipeline.TRIGGER_KEY;
+        LatencyHistogram input = key ? metrics.keyInput : metrics.touchInput;
+        input.recordMillis(SystemClock.uptimeMillis() - eventTime);
+        ensureStarted();
+        if (!refreshAccessState()) {
+            if (key) showToast("⚠️ Notification Access needed", Toast.LENGTH_SHORT);
+            return;
+        }
+        if (!capturePipeline.submit(eventTime, trigger)) {
+            showToast("⚠️ Too many pending captures", Toast.LENGTH_SHORT);
         }
     }
 
-    private Notification createNotification() {
-        Intent intent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
-        return new NotificationCompat.Builder(this, "poweramp_timestamp_channel")
-                .setContentTitle("PowerAmp Timestamp")
-                .setContentText("Tap to save")
-                .setSmallIcon(android.R.drawable.ic_media_play)
-                .setContentIntent(pendingIntent)
-                .build();
-    }
-
-    private void saveTimestamp() {
-        SharedPreferences prefs = getSharedPreferences("poweramp_data", Context.MODE_PRIVATE);
-        
-        // Request fresh position
-        long requestTime = System.currentTimeMillis();
-        Intent requestIntent = new Intent(ACTION_API_COMMAND);
-        requestIntent.putExtra(EXTRA_COMMAND, COMMAND_POS_SYNC);
-        requestIntent.setComponent(new ComponentName(POWERAMP_PACKAGE, POWERAMP_API_RECEIVER));
-        sendBroadcast(requestIntent);
-        Log.d(TAG, "📡 Requested position sync via broadcast to receiver");
-        
-        // Wait for update with timeout
-        long timeout = requestTime + 4000; // Increased to 4 seconds
-        boolean updated = false;
-        while (System.currentTimeMillis() < timeout) {
-            long lastUpdate = prefs.getLong("last_position_update", 0);
-            if (lastUpdate > requestTime) {
-                updated = true;
-                Log.d(TAG, "✓ Position updated after request");
-                break;
-            }
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        
-        if (!updated) {
-            Toast.makeText(this, "⚠️ Position update timed out", Toast.LENGTH_SHORT).show();
-            Log.e(TAG, "❌ Position sync timeout");
+    /**
+     * Adds or removes the overlay window; the view itself is kept, so re-attaching is one
+     * {@code addView}. {@code eventTime} is the uptime of the foreground change, or -1.
+     */
+    private void setOverlayAttached(boolean attach, final long eventTime) {
+        if (attach == overlayAttached) return;
+        overlayAttached = attach;
+        if (!attach) {
+            windowManager.removeView(floatingView);
             return;
         }
-        
-        String title = prefs.getString("notification_title", "");
-        String text = prefs.getString("notification_text", "");
-        String subText = prefs.getString("notification_subtext", "");
-        
-        long position = prefs.getLong("playback_position", 0);
-        
-        Log.d(TAG, "📊 DEBUG INFO:");
-        Log.d(TAG, "  Title: " + title);
-        Log.d(TAG, "  Text: " + text);
-        Log.d(TAG, "  SubText: " + subText);
-        Log.d(TAG, "  Position: " + position + " ms");
-        
-        String found = "";
-        if (!title.isEmpty() && !title.startsWith("content://")) found = title;
-        else if (!text.isEmpty() && !text.startsWith("content://")) found = text;
-        else if (!subText.isEmpty() && !subText.startsWith("content://")) found = subText;
-        
-        if (found.isEmpty()) {
-            String broadcastTrack = prefs.getString("broadcast_track", "");
-            String broadcastPath = prefs.getString("broadcast_path", "");
-            
-            if (!broadcastTrack.isEmpty()) found = broadcastTrack;
-            else if (!broadcastPath.isEmpty()) found = broadcastPath;
+        windowManager.addView(floatingView, overlayParams);
+        if (eventTime >= 0) {
+            // The next frame is the first one showing the button again
+            Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    metrics.overlayShow.recordMillis(SystemClock.uptimeMillis() - eventTime);
+                }
+            });
         }
-        
-        if (found.isEmpty()) {
-            Toast.makeText(this, "❌ No track detected", Toast.LENGTH_SHORT).show();
-            Log.e(TAG, "❌ No track found!");
+    }
+
+    /** Count and newest markers of the current track under the button; hidden until it has any. */
+    private void showRecentMarkers(RecentMarkers.Snapshot recent) {
+        if (recent == null || recent.count == 0) {
+            recentMarkersView.setVisibility(View.GONE);
             return;
         }
-        
-        currentFilename = cleanFilename(found);
-        String timestamp = formatTime(position);
-        
-        Log.d(TAG, "💾 Saving timestamp: " + timestamp + " to file: " + currentFilename + ".txt");
-        Toast.makeText(this, "💾 Saving: " + timestamp, Toast.LENGTH_SHORT).show();
-        
-        File dir = new File("/storage/emulated/0/_Edit-times");
-        dir.mkdirs();
-        File file = new File(dir, currentFilename + ".txt");
-        
-        try {
-            if (!file.exists()) {
-                FileOutputStream fos = new FileOutputStream(file);
-                fos.write((currentFilename + "\n" + timestamp + "\n").getBytes());
-                fos.close();
-                Toast.makeText(this, "✅ Created file!", Toast.LENGTH_SHORT).show();
-                Log.d(TAG, "✅ Created new file: " + file.getAbsolutePath());
-            } else {
-                FileOutputStream fos = new FileOutputStream(file, true);
-                fos.write((timestamp + "\n").getBytes());
-                fos.close();
-                Toast.makeText(this, "✅ Saved: " + timestamp, Toast.LENGTH_SHORT).show();
-                Log.d(TAG, "✅ Appended to file: " + file.getAbsolutePath());
-            }
-        } catch (Exception e) {
-            Toast.makeText(this, "❌ Error: " + e.getMessage(), Toast.LENGTH_LONG).show();
-            Log.e(TAG, "❌ Error saving file", e);
+        StringBuilder sb = new StringBuilder();
+        sb.append(recent.count).append(recent.count == 1 ? " marker" : " markers");
+        for (String timestamp : recent.latest) {
+            sb.append('\n').append(timestamp);
         }
+        recentMarkersView.setText(sb);
+        recentMarkersView.setVisibility(View.VISIBLE);
     }
 
-    private String cleanFilename(String filename) {
-        if (filename == null || filename.isEmpty()) return "";
-        if (filename.contains("/")) filename = filename.substring(filename.lastIndexOf("/") + 1);
-        if (filename.contains(".")) filename = filename.substring(0, filename.lastIndexOf("."));
-        return filename.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+    /** Replaces the previous capture toast so a burst of taps does not queue up toasts. */
+    private void showToast(String message, int duration) {
+        if (toast != null) toast.cancel();
+        toast = Toast.makeText(this, message, duration);
+        toast.show();
     }
 
-    private String formatTime(long milliseconds) {
-        long seconds = milliseconds / 1000;
-        long hours = seconds / 3600;
-        long minutes = (seconds % 3600) / 60;
-        long secs = seconds % 60;
-        return String.format(Locale.US, "%02d:%02d:%02d", hours, minutes, secs);
+    /** Reads the cached notification access and publishes RUNNING or DEGRADED accordingly. */
+    private boolean refreshAccessState() {
+        boolean granted = notificationAccess != null && notificationAccess.isGranted();
+        publishAccessState(granted);
+        return granted;
+    }
+
+    private static void publishAccessState(boolean granted) {
+        ServiceStatus.setState(granted ? ServiceStatus.State.RUNNING : ServiceStatus.State.DEGRADED);
+    }
+
+    private Notification createNotification() {
+        Intent intent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, "poweramp_timestamp_channel")
+                .setContentTitle("PowerAmp Timestamp")
+                .setContentText("Tap to save")
+                .setSmallIcon(android.R.drawable.ic_media_play)
+                .setContentIntent(pendingIntent)
+                .build();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        running = false;
+        ServiceStatus.setState(ServiceStatus.State.STOPPED);
+        handler.removeCallbacks(deferredInit);
+
+        if (notificationAccess != null) {
+            notificationAccess.stop();
+        }
         
         if (powerAmpReceiver != null) {
             try {
@@ -321,8 +331,14 @@ public class FloatingButtonService extends Service {
                 Log.e(TAG, "Error unregistering receiver", e);
             }
         }
+
+        if (capturePipeline != null) {
+            capturePipeline.shutdown();
+        }
         
-        if (floatingView != null) {
+        ForegroundApp.removeListener(foregroundListener);
+        HardwareTrigger.removeListener(hardwareListener);
+        if (overlayAttached) {
             try { 
                 windowManager.removeView(floatingView); 
                 Log.d(TAG, "✓ Removed floating view");
@@ -0,0 +1,49 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Which app is in the foreground, as reported by {@link ForegroundDetector}.
+ *
+ * Null means unknown: the detector is not enabled or not connected, and callers should behave
+ * as if PowerAmp could be on screen. Published and read on the main thread.
+ */
+final class ForegroundApp {
+
+    interface Listener {
+        /** {@code eventTime} is the uptime millis of the window change that caused it. */
+        void onForegroundChanged(String packageName, long eventTime);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+    private static volatile String current;
+
+    private ForegroundApp() {
+    }
+
+    static String current() {
+        return current;
+    }
+
+    static boolean isPowerAmp(String packageName) {
+        return packageName == null || PowerAmpEvent.POWERAMP_PACKAGE.equals(packageName);
+    }
+
+    /** Publishes {@code packageName} (null for unknown) if it differs from the current one. */
+    static void publish(String packageName, long eventTime) {
+        String prev = current;
+        if (prev == null ? packageName == null : prev.equals(packageName)) return;
+        current = packageName;
+        for (Listener listener : LISTENERS) {
+            listener.onForegroundChanged(packageName, eventTime);
+        }
+    }
+
+    static void addListener(Listener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+}
@@ -0,0 +1,137 @@
+package com.poweramp.timestamp;
+
+import android.accessibilityservice.AccessibilityService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+import android.view.KeyEvent;
+import android.view.accessibility.AccessibilityEvent;
+import java.util.HashMap;
+
+/**
+ * Optional accessibility service that reports foreground app changes to {@link ForegroundApp}.
+ *
+ * It subscribes only to window-state changes and reads nothing but the package and class name,
+ * so the system calls it once per app or activity switch and there is nothing to poll. Only
+ * activity windows count: dialogs, popups, the keyboard and System UI (notification shade,
+ * volume panel) open over an app without replacing it. Time spent per event is recorded in
+ * {@link CaptureMetrics#foregroundDetect}.
+ *
+ * It also filters key events for the capture gestures of {@link KeyTrigger} (mode in
+ * {@link CapturePipeline#KEY_HARDWARE_TRIGGER}) and hands them to {@link HardwareTrigger} with
+ * the key's own event time. Keys pass through untouched while the service is not running.
+ */
+public class ForegroundDetector extends AccessibilityService {
+
+    private static final String TAG = "ForegroundDetector";
+    private static final String SYSTEM_UI_PACKAGE = "com.android.systemui";
+
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    private SharedPreferences prefs;
+    // "package/class" of each window seen so far, mapped to whether it is an activity
+    private final HashMap<String, Boolean> activityWindows = new HashMap<>();
+
+    private final KeyTrigger keyTrigger = new KeyTrigger(new KeyTrigger.Sink() {
+        @Override
+        public void onTrigger(long eventTime) {
+            HardwareTrigger.publish(eventTime);
+        }
+    });
+
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (CapturePipeline.KEY_HARDWARE_TRIGGER.equals(key)) loadTriggerMode();
+                }
+            };
+
+    @Override
+    protected void onServiceConnected() {
+        prefs = getSharedPreferences(PlaybackStatePersistence.PREFS_NAME, Context.MODE_PRIVATE);
+        prefs.registerOnSharedPreferenceChangeListener(prefsListener);
+        loadTriggerMode();
+        Log.d(TAG, "✓ Foreground detector connected, key trigger " + keyTrigger.getMode());
+    }
+
+    private void loadTriggerMode() {
+        keyTrigger.setMode(KeyTrigger.Mode.parse(prefs.getString(CapturePipeline.KEY_HARDWARE_TRIGGER, null)));
+    }
+
+    @Override
+    protected boolean onKeyEvent(KeyEvent event) {
+        if (!HardwareTrigger.hasListeners()) return false;
+        return keyTrigger.onKey(event.getKeyCode(), event.getAction() == KeyEvent.ACTION_DOWN,
+                event.getRepeatCount(), event.getEventTime());
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        long start = System.nanoTime();
+        String foreground = null;
+        if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            CharSequence packageName = event.getPackageName();
+            // Our own windows (toasts, the settings screen) do not change what is under them
+            if (packageName != null && !getPackageName().contentEquals(packageName)
+                    && isActivityWindow(packageName.toString(), event.getClassName())) {
+                foreground = packageName.toString();
+            }
+        }
+        // Measured up to here; attaching the overlay is counted separately
+        metrics.foregroundDetect.recordNanos(System.nanoTime() - start);
+        if (foreground != null) ForegroundApp.publish(foreground, event.getEventTime());
+    }
+
+    /** True if {@code className} is one of {@code packageName}'s activities, i.e. a new app screen. */
+    private boolean isActivityWindow(String packageName, CharSequence className) {
+        if (SYSTEM_UI_PACKAGE.equals(packageName) || className == null) return false;
+        String key = packageName + '/' + className;
+        Boolean known = activityWindows.get(key);
+        if (known == null) {
+            known = resolveActivity(packageName, className.toString());
+            activityWindows.put(key, known);
+        }
+        // The keyboard can change while we run, so it is not cached
+        return known && !packageName.equals(currentInputMethod());
+    }
+
+    private boolean resolveActivity(String packageName, String className) {
+        PackageManager pm = getPackageManager();
+        try {
+            pm.getActivityInfo(new ComponentName(packageName, className), 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Not an activity, unless the whole package is hidden from us by package visibility;
+            // then all we can go by is that it opened a window
+            try {
+                pm.getPackageInfo(packageName, 0);
+                return false;
+            } catch (PackageManager.NameNotFoundException hidden) {
+                return true;
+            }
+        }
+    }
+
+    private String currentInputMethod() {
+        String id = Settings.Secure.getString(getContentResolver(), Settings.Secure.DEFAULT_INPUT_METHOD);
+        ComponentName ime = id == null ? null : ComponentName.unflattenFromString(id);
+        return ime == null ? null : ime.getPackageName();
+    }
+
+    @Override
+    public void onInterrupt() {
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (prefs != null) prefs.unregisterOnSharedPreferenceChangeListener(prefsListener);
+        // Without the detector the overlay has to assume PowerAmp may be showing
+        ForegroundApp.publish(null, SystemClock.uptimeMillis());
+        Log.d(TAG, "⚠️ Foreground detector stopped");
+    }
+}
@@ -0,0 +1,40 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Captures triggered by hardware keys, passed from {@link ForegroundDetector} (which sees the
+ * key events) to {@link FloatingButtonService} (which owns the capture pipeline). Published and
+ * read on the main thread.
+ */
+final class HardwareTrigger {
+
+    interface Listener {
+        /** {@code eventTime} is the uptime millis of the key press that started the gesture. */
+        void onHardwareTrigger(long eventTime);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    private HardwareTrigger() {
+    }
+
+    /** False while nothing would capture, so keys should reach the system untouched. */
+    static boolean hasListeners() {
+        return !LISTENERS.isEmpty();
+    }
+
+    static void publish(long eventTime) {
+        for (Listener listener : LISTENERS) {
+            listener.onHardwareTrigger(eventTime);
+        }
+    }
+
+    static void addListener(Listener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+}
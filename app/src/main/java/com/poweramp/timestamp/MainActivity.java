@@ -3,7 +3,10 @@ package com.poweramp.timestamp;
 import android.Manifest;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
@@ -11,26 +14,62 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
 
+    private static final String TAG = "MainActivity";
+
     private static final int REQUEST_OVERLAY_PERMISSION = 1001;
     private static final int REQUEST_STORAGE_PERMISSION = 1002;
     private static final int REQUEST_MANAGE_STORAGE = 1003;
     private static final int REQUEST_NOTIFICATION_PERMISSION = 1004;
+    private static final int REQUEST_MARKER_FOLDER = 1005;
+
+    private static final String EXPORT_DIR = CapturePipeline.MARKER_DIR + "/_exports";
+    /** Prefix of the preference holding the wall time of the last export per format. */
+    private static final String KEY_LAST_EXPORT = "last_export_";
 
     private Button btnStart;
     private Button btnStop;
     private TextView tvStatus;
+    private Button btnMetrics;
+    private View layoutMetrics;
+    private TextView tvMetrics;
     private Handler handler;
-    private Runnable updateStatusRunnable;
+    private Runnable updateMetricsRunnable;
+    private Button btnCalibrate;
+    private ReactionCalibration calibration;
+    private long cueTime = -1;
+    private final Random random = new Random();
+
+    // Shows the cue; its time is taken from the frame that first draws it
+    private final Runnable showCue = () -> {
+        btnCalibrate.setText("TAP NOW!");
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos -> cueTime = frameTimeNanos / 1_000_000);
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -40,36 +79,85 @@ public class MainActivity extends AppCompatActivity {
         btnStart = findViewById(R.id.btnStart);
         btnStop = findViewById(R.id.btnStop);
         tvStatus = findViewById(R.id.tvStatus);
+        btnMetrics = findViewById(R.id.btnMetrics);
+        layoutMetrics = findViewById(R.id.layoutMetrics);
+        tvMetrics = findViewById(R.id.tvMetrics);
 
         createNotificationChannel();
 
         btnStart.setOnClickListener(v -> {
             if (checkPermissions()) {
                 startFloatingService();
-                // Update UI after a short delay
-                new Handler(Looper.getMainLooper()).postDelayed(this::updateStatus, 300);
             }
         });
 
-        btnStop.setOnClickListener(v -> {
-            stopFloatingService();
-            // Update UI after a short delay
-            new Handler(Looper.getMainLooper()).postDelayed(this::updateStatus, 300);
+        btnStop.setOnClickListener(v -> stopFloatingService());
+
+        btnMetrics.setOnClickListener(v -> setMetricsVisible(layoutMetrics.getVisibility() != View.VISIBLE));
+        findViewById(R.id.btnDumpMetrics).setOnClickListener(v -> dumpMetrics());
+
+        // Tap exports what changed since the last export; long-press re-exports everything
+        Button btnExport = findViewById(R.id.btnExport);
+        btnExport.setOnClickListener(v -> chooseExportFormat(false));
+        btnExport.setOnLongClickListener(v -> {
+            chooseExportFormat(true);
+            return true;
+        });
+
+        // Tap picks a folder through the system picker (no all-files access needed);
+        // long-press goes back to the default folder
+        Button btnChooseFolder = findViewById(R.id.btnChooseFolder);
+        btnChooseFolder.setOnClickListener(v ->
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_MARKER_FOLDER));
+        btnChooseFolder.setOnLongClickListener(v -> {
+            prefs().edit().remove(CapturePipeline.KEY_TREE_URI).apply();
+            Toast.makeText(this, "📁 Saving to " + CapturePipeline.MARKER_DIR + restartHint(), Toast.LENGTH_LONG).show();
+            return true;
         });
 
-        // Auto-update status every second
         handler = new Handler(Looper.getMainLooper());
-        updateStatusRunnable = new Runnable() {
+
+        findViewById(R.id.btnHardwareTrigger).setOnClickListener(v -> chooseHardwareTrigger());
+        findViewById(R.id.btnSettings).setOnClickListener(v -> chooseSetting());
+
+        // Tap runs a reaction-time test whose result is subtracted from every capture;
+        // long-press clears it
+        btnCalibrate = findViewById(R.id.btnCalibrate);
+        updateCalibrateButton();
+        btnCalibrate.setOnClickListener(v -> {
+            if (calibration == null) startCalibration();
+        });
+        btnCalibrate.setOnTouchListener((v, event) -> {
+            if (calibration == null || event.getActionMasked() != MotionEvent.ACTION_DOWN) return false;
+            onCalibrationTap(event.getEventTime());
+            return true;
+        });
+        btnCalibrate.setOnLongClickListener(v -> {
+            if (calibration != null) return false;
+            prefs().edit().remove(CapturePipeline.KEY_REACTION_MS).apply();
+            updateCalibrateButton();
+            Toast.makeText(this, "⏱️ Reaction offset cleared" + restartHint(), Toast.LENGTH_SHORT).show();
+            return true;
+        });
+
+        // Metrics are only formatted while the panel is open
+        updateMetricsRunnable = new Runnable() {
             @Override
             public void run() {
-                updateStatus();
+                tvMetrics.setText(CaptureMetrics.get().report(SystemClock.uptimeMillis()));
                 handler.postDelayed(this, 1000);
             }
         };
-        
-        updateStatus();
     }
 
+    // The service publishes on the main thread, but post anyway so we never redraw mid-layout
+    private final ServiceStatus.Listener statusListener = new ServiceStatus.Listener() {
+        @Override
+        public void onServiceStatusChanged(final ServiceStatus status) {
+            handler.post(() -> updateStatus(status));
+        }
+    };
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -93,8 +181,9 @@ public class MainActivity extends AppCompatActivity {
             return false;
         }
 
-        // Check storage permissions
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+        // Check storage permissions; a folder chosen through the picker needs none
+        boolean needsStorage = !usesDocumentTree();
+        if (needsStorage && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             if (!Environment.isExternalStorageManager()) {
                 Toast.makeText(this, "Please grant 'All files access' permission", Toast.LENGTH_LONG).show();
                 Intent intent = new Intent(Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION);
@@ -102,7 +191,7 @@ public class MainActivity extends AppCompatActivity {
                 startActivityForResult(intent, REQUEST_MANAGE_STORAGE);
                 return false;
             }
-        } else {
+        } else if (needsStorage) {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
                     != PackageManager.PERMISSION_GRANTED) {
                 ActivityCompat.requestPermissions(this,
@@ -143,47 +232,326 @@ public class MainActivity extends AppCompatActivity {
         Toast.makeText(this, "Stopping service...", Toast.LENGTH_SHORT).show();
     }
 
-    private void updateStatus() {
-        boolean isRunning = FloatingButtonService.isRunning();
-        
-        if (isRunning) {
-            tvStatus.setText("✓ Service is running\nFloating button is active");
-            btnStart.setEnabled(false);
-            btnStart.setAlpha(0.5f);
-            btnStop.setEnabled(true);
-            btnStop.setAlpha(1.0f);
-        } else {
-            tvStatus.setText("Service is stopped");
-            btnStart.setEnabled(true);
-            btnStart.setAlpha(1.0f);
-            btnStop.setEnabled(false);
-            btnStop.setAlpha(0.5f);
+    private void setMetricsVisible(boolean visible) {
+        layoutMetrics.setVisibility(visible ? View.VISIBLE : View.GONE);
+        btnMetrics.setText(visible ? "HIDE METRICS" : "SHOW METRICS");
+        handler.removeCallbacks(updateMetricsRunnable);
+        if (visible) handler.post(updateMetricsRunnable);
+    }
+
+    private void dumpMetrics() {
+        StringBuilder sb = new StringBuilder(CaptureMetrics.get().report(SystemClock.uptimeMillis()));
+        sb.append("\n\n");
+        TraceRecorder.get().dump(sb);
+        final String report = sb.toString();
+        final File dir = getExternalFilesDir(null);
+        final String name = "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt";
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final File file = new File(dir, name);
+                String message;
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                    out.write(report);
+                    message = "💾 Metrics saved to " + file;
+                    Log.d(TAG, message);
+                } catch (IOException e) {
+                    Log.e(TAG, "❌ Error dumping metrics", e);
+                    message = "❌ Error: " + e.getMessage();
+                }
+                final String toast = message;
+                handler.post(() -> Toast.makeText(MainActivity.this, toast, Toast.LENGTH_LONG).show());
+            }
+        }, "metrics-dump").start();
+    }
+
+    private SharedPreferences prefs() {
+        return getSharedPreferences(PlaybackStatePersistence.PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private boolean usesDocumentTree() {
+        return prefs().getString(CapturePipeline.KEY_TREE_URI, null) != null;
+    }
+
+    private String restartHint() {
+        return FloatingButtonService.isRunning() ? "\nRestart the service to apply" : "";
+    }
+
+    private void onMarkerFolderChosen(Uri tree) {
+        getContentResolver().takePersistableUriPermission(tree,
+                Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        prefs().edit().putString(CapturePipeline.KEY_TREE_URI, tree.toString()).apply();
+        Log.d(TAG, "📁 Marker folder: " + tree);
+        Toast.makeText(this, "📁 Marker folder chosen" + restartHint(), Toast.LENGTH_LONG).show();
+    }
+
+    private void startCalibration() {
+        calibration = new ReactionCalibration();
+        Toast.makeText(this, "Tap the button as soon as it says TAP NOW", Toast.LENGTH_SHORT).show();
+        scheduleCue("WAIT...");
+    }
+
+    private void scheduleCue(String label) {
+        cueTime = -1;
+        btnCalibrate.setText(label);
+        handler.removeCallbacks(showCue);
+        handler.postDelayed(showCue, 1500 + random.nextInt(2000));
+    }
+
+    private void onCalibrationTap(long tapTime) {
+        if (cueTime < 0) {
+            scheduleCue("TOO EARLY - WAIT...");
+            return;
+        }
+        if (!calibration.add(cueTime, tapTime)) {
+            scheduleCue("MISSED - WAIT...");
+            return;
+        }
+        if (!calibration.isComplete()) {
+            scheduleCue("WAIT... (" + calibration.count() + "/" + ReactionCalibration.TRIALS + ")");
+            return;
         }
+        long reaction = calibration.median();
+        calibration = null;
+        prefs().edit().putInt(CapturePipeline.KEY_REACTION_MS, (int) reaction).apply();
+        Log.d(TAG, "⏱️ Reaction offset " + reaction + " ms");
+        updateCalibrateButton();
+        Toast.makeText(this, "⏱️ Markers will be placed " + reaction + " ms before each tap" + restartHint(),
+                Toast.LENGTH_LONG).show();
+    }
+
+    private void updateCalibrateButton() {
+        int reaction = prefs().getInt(CapturePipeline.KEY_REACTION_MS, 0);
+        btnCalibrate.setText(reaction > 0 ? "CALIBRATE REACTION TIME (" + reaction + " ms)" : "CALIBRATE REACTION TIME");
+    }
+
+    private void chooseHardwareTrigger() {
+        final KeyTrigger.Mode[] modes = KeyTrigger.Mode.values();
+        new AlertDialog.Builder(this)
+                .setTitle("Save a timestamp with")
+                .setItems(new CharSequence[]{"Nothing (overlay only)", "Volume up + down together",
+                                "Headset button (no longer plays/pauses)", "Both"},
+                        (dialog, which) -> {
+                            prefs().edit().putString(CapturePipeline.KEY_HARDWARE_TRIGGER, modes[which].name()).apply();
+                            if (modes[which] != KeyTrigger.Mode.OFF) {
+                                // Keys are only seen by the accessibility service
+                                Toast.makeText(this, "Needs the PowerAmp Timestamp accessibility service enabled",
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void chooseSetting() {
+        new AlertDialog.Builder(this)
+                .setTitle("Marker settings")
+                .setItems(new CharSequence[]{"Timestamp precision", "Merge quick repeat taps",
+                                "Sort marker files", "Write safety"},
+                        (dialog, which) -> {
+                            switch (which) {
+                                case 0:
+                                    chooseMillis();
+                                    break;
+                                case 1:
+                                    chooseDedup();
+                                    break;
+                                case 2:
+                                    chooseSorting();
+                                    break;
+                                default:
+                                    chooseFsyncPolicy();
+                                    break;
+                            }
+                        })
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
+    private void chooseMillis() {
+        boolean millis = prefs().getBoolean(CapturePipeline.KEY_MILLIS, false);
+        chooseOne("Timestamp precision", new CharSequence[]{"Seconds (00:01:23)", "Milliseconds (00:01:23.456)"},
+                millis ? 1 : 0,
+                (dialog, which) -> prefs().edit().putBoolean(CapturePipeline.KEY_MILLIS, which == 1).apply());
+    }
+
+    private void chooseDedup() {
+        final int[] values = {0, 250, 500, 1000};
+        chooseOne("Merge taps closer than", new CharSequence[]{"Off (keep every tap)", "250 ms", "500 ms", "1 s"},
+                indexOf(values, prefs().getInt(CapturePipeline.KEY_DEDUP_MS, 0)),
+                (dialog, which) -> prefs().edit().putInt(CapturePipeline.KEY_DEDUP_MS, values[which]).apply());
+    }
+
+    private void chooseSorting() {
+        // -1 stands for unsorted; the rest are the duplicate tolerance
+        final int[] values = {-1, 0, 500, 1000};
+        SharedPreferences prefs = prefs();
+        int current = prefs.getBoolean(CapturePipeline.KEY_SORTED, false)
+                ? prefs.getInt(CapturePipeline.KEY_SORT_TOLERANCE_MS, 0) : -1;
+        chooseOne("Sort marker files", new CharSequence[]{"Off (tap order)", "Sorted, exact duplicates dropped",
+                        "Sorted, markers within 0.5 s dropped", "Sorted, markers within 1 s dropped"},
+                indexOf(values, current),
+                (dialog, which) -> {
+                    SharedPreferences.Editor editor = prefs().edit()
+                            .putBoolean(CapturePipeline.KEY_SORTED, values[which] >= 0);
+                    if (values[which] >= 0) editor.putInt(CapturePipeline.KEY_SORT_TOLERANCE_MS, values[which]);
+                    editor.apply();
+                });
+    }
+
+    private void chooseFsyncPolicy() {
+        final MarkerWriter.FsyncPolicy[] policies = {MarkerWriter.FsyncPolicy.ON_CLOSE,
+                MarkerWriter.FsyncPolicy.ON_FLUSH, MarkerWriter.FsyncPolicy.NEVER};
+        MarkerWriter.FsyncPolicy current =
+                MarkerWriter.FsyncPolicy.parse(prefs().getString(CapturePipeline.KEY_FSYNC_POLICY, null));
+        int checked = 0;
+        for (int i = 0; i < policies.length; i++) {
+            if (policies[i] == current) checked = i;
+        }
+        chooseOne("Write safety", new CharSequence[]{"Sync when a file is closed (default)",
+                        "Sync after every save (safest, more battery)", "Never sync (fastest)"},
+                checked,
+                (dialog, which) -> prefs().edit()
+                        .putString(CapturePipeline.KEY_FSYNC_POLICY, policies[which].name()).apply());
+    }
+
+    /** Single-choice dialog that applies the picked item and says when it takes effect. */
+    private void chooseOne(final String title, final CharSequence[] labels, int checked,
+            final DialogInterface.OnClickListener apply) {
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    apply.onClick(dialog, which);
+                    dialog.dismiss();
+                    Toast.makeText(this, "⚙️ " + title + ": " + labels[which] + restartHint(),
+                            Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /** Index of {@code value} in {@code values}, or -1 (nothing checked) for a custom value. */
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private void chooseExportFormat(final boolean full) {
+        final MarkerExporter.Format[] formats = MarkerExporter.Format.values();
+        new AlertDialog.Builder(this)
+                .setTitle(full ? "Export all markers" : "Export new markers")
+                .setItems(new CharSequence[]{"CSV", "JSON Lines", "CUE sheets"},
+                        (dialog, which) -> exportMarkers(formats[which], full))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void exportMarkers(final MarkerExporter.Format format, final boolean full) {
+        final SharedPreferences prefs = prefs();
+        // Exports from a picked folder go to app storage, which needs no permission either
+        final File exportDir = usesDocumentTree() ? getExternalFilesDir("exports") : new File(EXPORT_DIR);
+        final String key = KEY_LAST_EXPORT + format.extension;
+        final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        Toast.makeText(this, "Exporting...", Toast.LENGTH_SHORT).show();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long since = full ? 0 : prefs.getLong(key, 0);
+                // Files touched while the export runs are picked up again next time
+                long started = System.currentTimeMillis();
+                File out = format == MarkerExporter.Format.CUE
+                        ? new File(exportDir, "cue")
+                        : new File(exportDir, "markers-" + stamp + "." + format.extension);
+                String message;
+                try {
+                    MarkerExporter.Result result = new MarkerExporter()
+                            .export(CapturePipeline.openStore(MainActivity.this, prefs), format, out, since);
+                    prefs.edit().putLong(key, started).apply();
+                    message = "💾 Exported " + result.markers + " markers from " + result.files + " files to " + out;
+                    if (result.skipped > 0) {
+                        message += "\n⚠️ " + result.skipped + " markers over the 99-track CUE limit were left out";
+                    }
+                    Log.d(TAG, message);
+                } catch (IOException e) {
+                    Log.e(TAG, "❌ Error exporting markers", e);
+                    message = "❌ Error: " + e.getMessage();
+                }
+                final String toast = message;
+                handler.post(() -> Toast.makeText(MainActivity.this, toast, Toast.LENGTH_LONG).show());
+            }
+        }, "marker-export").start();
+    }
+
+    private void updateStatus(ServiceStatus status) {
+        switch (status.state) {
+            case STARTING:
+                tvStatus.setText("Service is starting...");
+                break;
+            case RUNNING:
+                tvStatus.setText("✓ Service is running\nFloating button is active" + captureLine(status));
+                break;
+            case DEGRADED:
+                tvStatus.setText("⚠️ Service is running without Notification Access\nTap the button to grant it"
+                        + captureLine(status));
+                break;
+            default:
+                tvStatus.setText("Service is stopped");
+                break;
+        }
+
+        boolean stopped = status.state == ServiceStatus.State.STOPPED;
+        boolean starting = status.state == ServiceStatus.State.STARTING;
+        setButtonEnabled(btnStart, stopped);
+        setButtonEnabled(btnStop, !stopped && !starting);
+    }
+
+    private static String captureLine(ServiceStatus status) {
+        if (status.lastTimestamp == null) return "";
+        return "\n\nSaved " + status.captures + (status.captures == 1 ? " marker" : " markers")
+                + ", last at " + status.lastTimestamp;
+    }
+
+    private static void setButtonEnabled(Button button, boolean enabled) {
+        button.setEnabled(enabled);
+        button.setAlpha(enabled ? 1.0f : 0.5f);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        updateStatus();
-        // Start auto-updating
-        handler.post(updateStatusRunnable);
+        ServiceStatus.addListener(statusListener);
+        updateStatus(ServiceStatus.current());
+        if (layoutMetrics.getVisibility() == View.VISIBLE) handler.post(updateMetricsRunnable);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        // Stop auto-updating
-        handler.removeCallbacks(updateStatusRunnable);
+        ServiceStatus.removeListener(statusListener);
+        handler.removeCallbacks(updateMetricsRunnable);
+        if (calibration != null) {
+            // A test interrupted by leaving the screen would time the wrong thing
+            calibration = null;
+            handler.removeCallbacks(showCue);
+            updateCalibrateButton();
+        }
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_MARKER_FOLDER) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                onMarkerFolderChosen(data.getData());
+            }
+            return;
+        }
         if (requestCode == REQUEST_OVERLAY_PERMISSION || 
             requestCode == REQUEST_MANAGE_STORAGE) {
             if (checkPermissions()) {
                 startFloatingService();
-                new Handler(Looper.getMainLooper()).postDelayed(this::updateStatus, 300);
             }
         }
     }
@@ -195,7 +563,6 @@ public class MainActivity extends AppCompatActivity {
             requestCode == REQUEST_NOTIFICATION_PERMISSION) {
             if (checkPermissions()) {
                 startFloatingService();
-                new Handler(Looper.getMainLooper()).postDelayed(this::updateStatus, 300);
             }
         }
     }
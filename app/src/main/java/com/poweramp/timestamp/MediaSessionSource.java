@@ -0,0 +1,145 @@
+package com.poweramp.timestamp;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.media.session.MediaController;
+import android.media.session.MediaSessionManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.List;
+
+/**
+ * Reads the position from PowerAmp's media session.
+ *
+ * The session's playback state carries position, speed and the elapsed-realtime of the last
+ * update in milliseconds, so a reading is computed locally with no broadcast round-trip, and
+ * session callbacks push every seek and play/pause without being asked. Listing sessions needs
+ * the notification-listener grant; until it is given the source stays unavailable and
+ * {@link #connect()} may be retried.
+ *
+ * Use from the handler's thread only.
+ */
+final class MediaSessionSource implements PositionSource {
+
+    private static final String TAG = "MediaSessionSource";
+    private static final long RETRY_MS = 10000;
+
+    private final Context context;
+    private final Handler handler;
+    private final PositionSource.Listener listener;
+    private MediaSessionManager sessionManager;
+    private volatile MediaController controller;
+    private long lastAttempt = -RETRY_MS;
+
+    private final MediaSessionManager.OnActiveSessionsChangedListener sessionsListener =
+            new MediaSessionManager.OnActiveSessionsChangedListener() {
+                @Override
+                public void onActiveSessionsChanged(List<MediaController> controllers) {
+                    attach(controllers);
+                }
+            };
+
+    private final MediaController.Callback callback = new MediaController.Callback() {
+        @Override
+        public void onPlaybackStateChanged(android.media.session.PlaybackState state) {
+            report(state, false);
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            attach(null);
+        }
+    };
+
+    MediaSessionSource(Context context, Handler handler, PositionSource.Listener listener) {
+        this.context = context;
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /** Starts following PowerAmp's session; cheap to call again, attempts are rate-limited. */
+    void connect() {
+        if (sessionManager != null) return;
+        long now = SystemClock.uptimeMillis();
+        if (now - lastAttempt < RETRY_MS) return;
+        lastAttempt = now;
+
+        MediaSessionManager manager = (MediaSessionManager) context.getSystemService(Context.MEDIA_SESSION_SERVICE);
+        ComponentName component = new ComponentName(context, PowerAmpNotificationListener.class);
+        try {
+            manager.addOnActiveSessionsChangedListener(sessionsListener, component, handler);
+            sessionManager = manager;
+            attach(manager.getActiveSessions(component));
+        } catch (SecurityException e) {
+            // No notification access yet
+            Log.d(TAG, "⚠️ Media sessions not accessible");
+        }
+    }
+
+    void disconnect() {
+        if (sessionManager != null) {
+            sessionManager.removeOnActiveSessionsChangedListener(sessionsListener);
+            sessionManager = null;
+        }
+        attach(null);
+    }
+
+    @Override
+    public String getName() {
+        return "media session";
+    }
+
+    @Override
+    public long getResolutionMs() {
+        return 1;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return controller != null;
+    }
+
+    @Override
+    public void requestPosition() {
+        MediaController c = controller;
+        if (c != null) report(c.getPlaybackState(), true);
+    }
+
+    private void attach(List<MediaController> controllers) {
+        MediaController found = null;
+        if (controllers != null) {
+            for (MediaController c : controllers) {
+                if (PowerAmpEvent.POWERAMP_PACKAGE.equals(c.getPackageName())) {
+                    found = c;
+                    break;
+                }
+            }
+        }
+        MediaController old = controller;
+        if (old == found) return;
+        if (old != null) old.unregisterCallback(callback);
+        controller = found;
+        if (found != null) {
+            found.registerCallback(callback, handler);
+            Log.d(TAG, "✓ Following PowerAmp media session");
+            report(found.getPlaybackState(), false);
+        }
+    }
+
+    /** {@code reply}: read because a position was requested, not pushed by the session. */
+    private void report(android.media.session.PlaybackState state, boolean reply) {
+        if (state == null) return;
+        long position = state.getPosition();
+        if (position == android.media.session.PlaybackState.PLAYBACK_POSITION_UNKNOWN) return;
+
+        boolean playing = state.getState() == android.media.session.PlaybackState.STATE_PLAYING;
+        long uptime = SystemClock.uptimeMillis();
+        if (playing) {
+            // The position is as of the last update; advance it to now at the session's speed
+            long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+            if (elapsed > 0) position += (long) (elapsed * state.getPlaybackSpeed());
+        }
+        listener.onPosition(this, position, playing, state.getPlaybackSpeed(), uptime, reply);
+    }
+}
@@ -0,0 +1,75 @@
+package com.poweramp.timestamp;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Cached notification-access grant for this app.
+ *
+ * {@code enabled_notification_listeners} is parsed once and then only again when the setting
+ * changes, so taps read a field instead of querying Settings. A connected
+ * {@link PowerAmpNotificationListener} also counts as granted, which covers the window before
+ * the observer has fired.
+ */
+final class NotificationAccess {
+
+    interface Listener {
+        /** Called on the observer's handler when the grant flips. */
+        void onAccessChanged(boolean granted);
+    }
+
+    private static final String TAG = "NotificationAccess";
+    private static final String SETTING = "enabled_notification_listeners";
+
+    private final Context context;
+    private final Listener listener;
+    private final ContentObserver observer;
+    private volatile boolean granted;
+    private volatile boolean loaded;
+
+    NotificationAccess(Context context, Handler handler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                boolean before = granted;
+                refresh();
+                if (granted != before) {
+                    Log.d(TAG, granted ? "🔓 Notification access granted" : "🔒 Notification access revoked");
+                    NotificationAccess.this.listener.onAccessChanged(granted);
+                }
+            }
+        };
+    }
+
+    /** Starts watching the setting and reads its current value. */
+    void start() {
+        context.getContentResolver().registerContentObserver(Settings.Secure.getUriFor(SETTING), false, observer);
+        refresh();
+    }
+
+    void stop() {
+        context.getContentResolver().unregisterContentObserver(observer);
+    }
+
+    boolean isGranted() {
+        if (PlaybackState.current().notificationListenerConnected) return true;
+        // Only a tap that beats the deferred start pays for the lookup
+        if (!loaded) refresh();
+        return granted;
+    }
+
+    private void refresh() {
+        try {
+            String enabledListeners = Settings.Secure.getString(context.getContentResolver(), SETTING);
+            granted = enabledListeners != null && enabledListeners.contains(context.getPackageName());
+        } catch (Exception e) {
+            granted = false;
+        }
+        loaded = true;
+    }
+}
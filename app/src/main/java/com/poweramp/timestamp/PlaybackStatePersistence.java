@@ -0,0 +1,113 @@
+package com.poweramp.timestamp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Optional write-behind persistence for {@link PlaybackState}.
+ *
+ * The in-memory store is the source of truth; this only mirrors it into the
+ * {@code poweramp_data} preferences at most once per {@link #WRITE_DELAY_MS}, so metadata that
+ * PowerAmp will not repost survives a process restart. Disable with the
+ * {@code persist_playback_state} preference.
+ */
+final class PlaybackStatePersistence {
+
+    static final String PREFS_NAME = "poweramp_data";
+    static final String KEY_ENABLED = "persist_playback_state";
+
+    private static final long WRITE_DELAY_MS = 2000;
+    private static final AtomicBoolean INSTALLED = new AtomicBoolean();
+
+    private final SharedPreferences prefs;
+    private final Handler handler;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // What the prefs currently hold; only touched on the persist thread
+    private String[] written;
+
+    private final Runnable writeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled.set(false);
+            write(PlaybackState.current());
+        }
+    };
+
+    private PlaybackStatePersistence(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        HandlerThread thread = new HandlerThread("playback-persist", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /** Idempotent; every process entry point may call it. Does no disk I/O on the caller. */
+    static void install(Context context) {
+        if (!INSTALLED.compareAndSet(false, true)) return;
+        final PlaybackStatePersistence persistence = new PlaybackStatePersistence(context.getApplicationContext());
+        persistence.handler.post(new Runnable() {
+            @Override
+            public void run() {
+                persistence.start();
+            }
+        });
+    }
+
+    private void start() {
+        if (!prefs.getBoolean(KEY_ENABLED, true)) return;
+        restore();
+        PlaybackState.addListener(new PlaybackState.Listener() {
+            @Override
+            public void onPlaybackStateChanged(PlaybackState state) {
+                if (writeScheduled.compareAndSet(false, true)) {
+                    handler.postDelayed(writeRunnable, WRITE_DELAY_MS);
+                }
+            }
+        });
+    }
+
+    private void restore() {
+        final String title = prefs.getString("notification_title", "");
+        final String text = prefs.getString("notification_text", "");
+        final String subText = prefs.getString("notification_subtext", "");
+        final long lastUpdate = prefs.getLong("last_update", 0);
+        final String track = prefs.getString("broadcast_track", "");
+        final String path = prefs.getString("broadcast_path", "");
+        final long lastBroadcast = prefs.getLong("last_broadcast_time", 0);
+
+        written = new String[]{title, text, subText, track, path};
+        PlaybackState.update(new PlaybackState.Updater() {
+            @Override
+            public void update(PlaybackState.Builder b) {
+                // Anything published since process start is newer than the saved copy
+                if (b.lastNotificationTime == 0) {
+                    b.notification(title, text, subText, lastUpdate);
+                }
+                if (b.lastBroadcastTime == 0) {
+                    b.broadcastTrack(track).broadcastPath(path).lastBroadcastTime(lastBroadcast);
+                }
+            }
+        });
+    }
+
+    private void write(PlaybackState state) {
+        // Most publishes only move the position or a timestamp, which alone is not worth a write
+        String[] fields = {state.notificationTitle, state.notificationText, state.notificationSubText,
+                state.broadcastTrack, state.broadcastPath};
+        if (Arrays.equals(fields, written)) return;
+        written = fields;
+        prefs.edit()
+                .putString("notification_title", state.notificationTitle)
+                .putString("notification_text", state.notificationText)
+                .putString("notification_subtext", state.notificationSubText)
+                .putLong("last_update", state.lastNotificationTime)
+                .putString("broadcast_track", state.broadcastTrack)
+                .putString("broadcast_path", state.broadcastPath)
+                .putLong("last_broadcast_time", state.lastBroadcastTime)
+                .apply();
+    }
+}
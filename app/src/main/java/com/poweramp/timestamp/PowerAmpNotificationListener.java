@@ -4,36 +4,74 @@ import android.os.Bundle;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.app.Notification;
-import android.content.Context;
-import android.content.SharedPreferences;
+import android.util.Log;
 
 public class PowerAmpNotificationListener extends NotificationListenerService {
 
+    private static final String TAG = "PowerAmpNotification";
+
     @Override
-    public void onNotificationPosted(StatusBarNotification sbn) {
-        if (sbn.getPackageName().equals("com.maxmpz.audioplayer")) {
-            Notification notification = sbn.getNotification();
-            if (notification.extras != null) {
-                Bundle extras = notification.extras;
-                
-                String title = extras.getString(Notification.EXTRA_TITLE, "");
-                String text = extras.getString(Notification.EXTRA_TEXT, "");
-                String subText = extras.getString(Notification.EXTRA_SUB_TEXT, "");
-                
-                // Save to SharedPreferences so FloatingButtonService can read it
-                SharedPreferences prefs = getSharedPreferences("poweramp_data", Context.MODE_PRIVATE);
-                SharedPreferences.Editor editor = prefs.edit();
-                editor.putString("notification_title", title);
-                editor.putString("notification_text", text);
-                editor.putString("notification_subtext", subText);
-                editor.putLong("last_update", System.currentTimeMillis());
-                editor.apply();
+    public void onCreate() {
+        super.onCreate();
+        PlaybackStatePersistence.install(this);
+    }
+
+    @Override
+    public void onListenerConnected() {
+        Log.d(TAG, "✓ Notification listener connected");
+        PlaybackState.update(new PlaybackState.Updater() {
+            @Override
+            public void update(PlaybackState.Builder b) {
+                b.notificationListenerConnected(true);
             }
+        });
+
+        // PowerAmp may not repost for a while; pick up what is already showing
+        try {
+            StatusBarNotification[] active = getActiveNotifications();
+            if (active != null) {
+                for (StatusBarNotification sbn : active) {
+                    onNotificationPosted(sbn);
+                }
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "❌ Cannot read active notifications", e);
         }
     }
 
+    @Override
+    public void onListenerDisconnected() {
+        Log.d(TAG, "⚠️ Notification listener disconnected");
+        PlaybackState.update(new PlaybackState.Updater() {
+            @Override
+            public void update(PlaybackState.Builder b) {
+                b.notificationListenerConnected(false);
+            }
+        });
+    }
+
+    @Override
+    public void onNotificationPosted(StatusBarNotification sbn) {
+        // Every app's notifications come through here; reject before touching extras
+        if (!PowerAmpEvent.POWERAMP_PACKAGE.equals(sbn.getPackageName())) return;
+
+        Bundle extras = sbn.getNotification().extras;
+        if (extras == null) return;
+
+        // Media notifications usually carry CharSequence (often styled) rather than String
+        PowerAmpIngest.get().offerNotification(
+                string(extras.getCharSequence(Notification.EXTRA_TITLE)),
+                string(extras.getCharSequence(Notification.EXTRA_TEXT)),
+                string(extras.getCharSequence(Notification.EXTRA_SUB_TEXT)),
+                System.currentTimeMillis());
+    }
+
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
         // Optional: handle when notification is removed
     }
+
+    private static String string(CharSequence value) {
+        return value == null ? "" : value.toString();
+    }
 }
@@ -3,43 +3,35 @@ package com.poweramp.timestamp;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.SystemClock;
 
+/**
+ * Hands PowerAmp broadcasts to {@link PowerAmpIngest}. Declared in the manifest, and also
+ * registered by {@link FloatingButtonService} on its capture looper; the ingest stage drops
+ * whichever copy arrives second.
+ */
 public class PowerAmpReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
-        if (action == null) return;
+        PowerAmpEvent event = toEvent(intent);
+        if (event == null) return;
 
-        Bundle extras = intent.getExtras();
-        if (extras != null) {
-            // Get playback position in milliseconds
-            int position = extras.getInt("pos", -1);
-            
-            // Get track info
-            String track = extras.getString("track", "");
-            String path = extras.getString("path", "");
-            
-            // Save to SharedPreferences
-            SharedPreferences prefs = context.getSharedPreferences("poweramp_data", Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = prefs.edit();
-            
-            if (position >= 0) {
-                editor.putLong("playback_position", position);
-            }
-            
-            if (!track.isEmpty()) {
-                editor.putString("broadcast_track", track);
-            }
-            
-            if (!path.isEmpty()) {
-                editor.putString("broadcast_path", path);
+        PlaybackStatePersistence.install(context);
+        PowerAmpIngest.get().offer(event);
+    }
+
+    /** Parses a PowerAmp broadcast; returns null for unrelated actions. */
+    static PowerAmpEvent toEvent(Intent intent) {
+        final Bundle extras = intent.getExtras();
+        return PowerAmpEvent.parse(intent.getAction(), extras == null ? null : new PowerAmpEvent.Extras() {
+            @Override
+            public Object get(String key) {
+                Object value = extras.get(key);
+                // Newer PowerAmp versions send the track as a bundle
+                return value instanceof Bundle ? ((Bundle) value).getString("title", "") : value;
             }
-            
-            editor.putLong("last_broadcast_time", System.currentTimeMillis());
-            editor.apply();
-        }
+        }, SystemClock.uptimeMillis(), System.currentTimeMillis());
     }
 }
@@ -0,0 +1,135 @@
+package com.poweramp.timestamp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link DocumentMarkerStore.Provider} over a Storage Access Framework tree the user picked.
+ * Opened documents are used through their file descriptor, so once a file is open, writes are
+ * plain positional I/O with no provider involved.
+ */
+final class SafMarkerProvider implements DocumentMarkerStore.Provider {
+
+    private static final String[] COLUMNS = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+
+    private static final class DescriptorHandle implements MarkerStore.Handle {
+        private final ParcelFileDescriptor pfd;
+        // Stream channels are one-way, so reads and writes each get one over the same descriptor
+        private final FileChannel in;
+        private final FileChannel out;
+
+        DescriptorHandle(ParcelFileDescriptor pfd) {
+            this.pfd = pfd;
+            in = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            out = new FileOutputStream(pfd.getFileDescriptor()).getChannel();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return in.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return in.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return out.write(src, position);
+        }
+
+        @Override
+        public void force() throws IOException {
+            out.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            pfd.close();
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final Uri tree;
+    private final String treeDocumentId;
+
+    SafMarkerProvider(Context context, Uri tree) {
+        resolver = context.getContentResolver();
+        this.tree = tree;
+        treeDocumentId = DocumentsContract.getTreeDocumentId(tree);
+    }
+
+    @Override
+    public List<DocumentMarkerStore.Document> listChildren() throws IOException {
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, treeDocumentId);
+        Cursor cursor = resolver.query(children, COLUMNS, null, null, null);
+        if (cursor == null) throw new IOException("Cannot list " + tree);
+        try {
+            List<DocumentMarkerStore.Document> result = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                result.add(new DocumentMarkerStore.Document(cursor.getString(0), cursor.getString(1), cursor.getLong(2)));
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public DocumentMarkerStore.Document create(String displayName) throws IOException {
+        Uri parent = DocumentsContract.buildDocumentUriUsingTree(tree, treeDocumentId);
+        Uri uri = DocumentsContract.createDocument(resolver, parent, "text/plain", displayName);
+        if (uri == null) throw new IOException("Cannot create " + displayName + " in " + tree);
+        return new DocumentMarkerStore.Document(DocumentsContract.getDocumentId(uri), displayName,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public MarkerStore.Handle open(String documentId) throws IOException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri(documentId), "rw");
+        if (pfd == null) throw new FileNotFoundException(documentId);
+        return new DescriptorHandle(pfd);
+    }
+
+    @Override
+    public InputStream read(String documentId) throws IOException {
+        InputStream in = resolver.openInputStream(uri(documentId));
+        if (in == null) throw new FileNotFoundException(documentId);
+        return in;
+    }
+
+    @Override
+    public void write(String documentId, byte[] content) throws IOException {
+        try (OutputStream out = resolver.openOutputStream(uri(documentId), "wt")) {
+            if (out == null) throw new FileNotFoundException(documentId);
+            out.write(content);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return tree.toString();
+    }
+
+    private Uri uri(String documentId) {
+        return DocumentsContract.buildDocumentUriUsingTree(tree, documentId);
+    }
+}
@@ -0,0 +1,88 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of {@link FloatingButtonService}'s lifecycle plus live capture stats.
+ *
+ * The service publishes on transitions and after each capture; observers such as
+ * {@link MainActivity} redraw from the snapshot they are handed instead of polling.
+ */
+final class ServiceStatus {
+
+    enum State {
+        STARTING,
+        RUNNING,
+        /** Running, but captures cannot resolve tracks without notification access. */
+        DEGRADED,
+        STOPPED
+    }
+
+    interface Listener {
+        /** Called on the publishing thread, only when the snapshot actually changed. */
+        void onServiceStatusChanged(ServiceStatus status);
+    }
+
+    private static final AtomicReference<ServiceStatus> CURRENT =
+            new AtomicReference<>(new ServiceStatus(State.STOPPED, 0, null));
+    private static final CopyOnWriteArrayList<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    final State state;
+    /** Markers saved since the service started. */
+    final long captures;
+    /** Timestamp of the last saved marker, or null if none yet. */
+    final String lastTimestamp;
+
+    private ServiceStatus(State state, long captures, String lastTimestamp) {
+        this.state = state;
+        this.captures = captures;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    static ServiceStatus current() {
+        return CURRENT.get();
+    }
+
+    boolean isActive() {
+        return state == State.RUNNING || state == State.DEGRADED;
+    }
+
+    /** Moves to {@code state}; starting over resets the capture stats. */
+    static void setState(State state) {
+        ServiceStatus prev;
+        ServiceStatus next;
+        do {
+            prev = CURRENT.get();
+            if (prev.state == state) return;
+            next = state == State.STARTING
+                    ? new ServiceStatus(state, 0, null)
+                    : new ServiceStatus(state, prev.captures, prev.lastTimestamp);
+        } while (!CURRENT.compareAndSet(prev, next));
+        publish(next);
+    }
+
+    static void onCaptureSaved(String timestamp) {
+        ServiceStatus prev;
+        ServiceStatus next;
+        do {
+            prev = CURRENT.get();
+            next = new ServiceStatus(prev.state, prev.captures + 1, timestamp);
+        } while (!CURRENT.compareAndSet(prev, next));
+        publish(next);
+    }
+
+    static void addListener(Listener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    private static void publish(ServiceStatus status) {
+        for (Listener listener : LISTENERS) {
+            listener.onServiceStatusChanged(status);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.poweramp.timestamp;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * PowerAmp's own position report: a {@code COMMAND_POS_SYNC} API command answered by a
+ * {@code TPOS_SYNC} broadcast carrying whole seconds. The reply comes in through
+ * {@link PowerAmpIngest}, so readings are fed by {@link CapturePipeline}, not by this class.
+ * Always available, which makes it the fallback.
+ */
+final class TposSyncSource implements PositionSource {
+
+    private static final String POWERAMP_API_RECEIVER = "com.maxmpz.audioplayer.player.PowerampAPIReceiver";
+    private static final String ACTION_API_COMMAND = PowerAmpEvent.POWERAMP_PACKAGE + ".API_COMMAND";
+    private static final String EXTRA_COMMAND = "cmd";
+    private static final int COMMAND_POS_SYNC = 16;
+
+    private final Context context;
+
+    TposSyncSource(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public String getName() {
+        return "tpos sync";
+    }
+
+    @Override
+    public long getResolutionMs() {
+        return PositionEstimator.POWERAMP_RESOLUTION_MS;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void requestPosition() {
+        Intent requestIntent = new Intent(ACTION_API_COMMAND);
+        requestIntent.putExtra(EXTRA_COMMAND, COMMAND_POS_SYNC);
+        requestIntent.setComponent(new ComponentName(PowerAmpEvent.POWERAMP_PACKAGE, POWERAMP_API_RECEIVER));
+        context.sendBroadcast(requestIntent);
+    }
+}
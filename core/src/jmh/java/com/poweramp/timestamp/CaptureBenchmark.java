@@ -0,0 +1,108 @@
+package com.poweramp.timestamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full capture-to-disk path: resolve, journal, index, format, buffer, and flush every
+ * {@code batch} captures; {@code journaled=false} measures the bare text-file path. Reports
+ * throughput and the latency distribution. Files go under the {@code bench.dir} system property
+ * (tmpfs via the Gradle config).
+ *
+ * {@code store} selects the backend: plain files, or {@link DocumentMarkerStore} over a
+ * {@link SimulatedDocumentProvider} charging {@link #PROVIDER_CALL_NANOS} per provider call.
+ * With {@code tracks} above the writer's four open files every capture reopens a file, the
+ * worst case for the document store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+
+    @Param({"1", "16"})
+    public int batch;
+
+    @Param({"true", "false"})
+    public boolean journaled;
+
+    @Param({"file", "document"})
+    public String store;
+
+    @Param({"1", "8"})
+    public int tracks;
+
+    /** Roughly one binder round-trip to a documents provider on a mid-range phone. */
+    static final long PROVIDER_CALL_NANOS = 300_000;
+
+    private File dir;
+    private MarkerRecorder recorder;
+    private PlaybackState[] states;
+    private long position;
+    private int sinceFlush;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        File base = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")));
+        dir = Files.createTempDirectory(base.toPath(), "capture-bench").toFile();
+        MarkerJournal journal = null;
+        MarkerIndex index = null;
+        if (journaled) {
+            journal = new MarkerJournal(new File(dir, "markers.journal"), new File(dir, "markers.journal.names"), 4096);
+            index = new MarkerIndex(new File(dir, "markers.index"), new File(dir, "markers.index.log"));
+        }
+        File markers = new File(dir, "markers");
+        markers.mkdirs();
+        MarkerStore markerStore = "document".equals(store)
+                ? new DocumentMarkerStore(new SimulatedDocumentProvider(markers, PROVIDER_CALL_NANOS))
+                : new FileMarkerStore(markers);
+        recorder = new MarkerRecorder(new TrackResolver(), new TimeFormatter(false),
+                new MarkerWriter(markerStore, 4, MarkerWriter.FsyncPolicy.NEVER), journal, index);
+        states = new PlaybackState[tracks];
+        for (int i = 0; i < tracks; i++) {
+            states[i] = new PlaybackState.Builder().notification("Artist - Title " + i, "", "", 1).build(i + 1);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        recorder.close();
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) delete(child);
+        }
+        f.delete();
+    }
+
+    @Benchmark
+    public MarkerRecorder.Result capture() throws IOException {
+        position += 250;
+        MarkerRecorder.Result result = recorder.record(states[(int) (position / 250 % tracks)], position, position);
+        if (++sinceFlush >= batch) {
+            sinceFlush = 0;
+            recorder.materialize();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,54 @@
+package com.poweramp.timestamp;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link TimeFormatter} against the {@code String.format} it replaced. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private final TimeFormatter seconds = new TimeFormatter(false);
+    private final TimeFormatter millis = new TimeFormatter(true);
+    private final char[] chars = new char[TimeFormatter.MAX_LENGTH];
+    private long position = 4_123_456;
+
+    private long next() {
+        position += 1_337;
+        return position;
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        long s = next() / 1000;
+        return String.format(Locale.US, "%02d:%02d:%02d", s / 3600, (s % 3600) / 60, s % 60);
+    }
+
+    @Benchmark
+    public int secondsIntoBuffer() {
+        return seconds.format(next(), chars, 0);
+    }
+
+    @Benchmark
+    public int millisIntoBuffer() {
+        return millis.format(next(), chars, 0);
+    }
+
+    @Benchmark
+    public String secondsToString() {
+        return seconds.format(next());
+    }
+}
@@ -0,0 +1,52 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Track resolution on an unchanged track (cache hit) and right after a track change (miss). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveBenchmark {
+
+    private final TrackResolver resolver = new TrackResolver();
+    private PlaybackState a;
+    private PlaybackState b;
+    private boolean flip;
+
+    @Setup
+    public void setUp() {
+        // Fallback chain all the way down to the path, the most expensive case
+        a = new PlaybackState.Builder()
+                .notification("content://media/1", "", "", 1)
+                .broadcastPath("/storage/emulated/0/Music/Album/01 - First.mp3")
+                .build(1);
+        b = new PlaybackState.Builder()
+                .notification("content://media/2", "", "", 2)
+                .broadcastPath("/storage/emulated/0/Music/Album/02 - Second.mp3")
+                .build(2);
+    }
+
+    @Benchmark
+    public TrackResolver.ResolvedTrack hit() {
+        return resolver.resolve(a);
+    }
+
+    @Benchmark
+    public TrackResolver.ResolvedTrack miss() {
+        flip = !flip;
+        return resolver.resolve(flip ? a : b);
+    }
+}
@@ -0,0 +1,42 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link FilenameSanitizer} against the substring/replaceAll chain it replaced. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitizeBenchmark {
+
+    @Param({
+            "Artist - Title",
+            "/storage/emulated/0/Music/Some Album/07 - Track: Part 2 (Live).mp3"
+    })
+    public String input;
+
+    @Benchmark
+    public String regex() {
+        String filename = input;
+        if (filename.contains("/")) filename = filename.substring(filename.lastIndexOf("/") + 1);
+        if (filename.contains(".")) filename = filename.substring(0, filename.lastIndexOf("."));
+        return filename.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+    }
+
+    @Benchmark
+    public String table() {
+        return FilenameSanitizer.clean(input);
+    }
+}
@@ -0,0 +1,78 @@
+package com.poweramp.timestamp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Document provider stand-in for benchmarking {@link DocumentMarkerStore} off-device: documents
+ * are files in a directory and every provider call first spins for {@code callNanos}, the cost
+ * of a binder round-trip. Opened handles are plain file handles, as descriptor-backed ones are
+ * on Android.
+ */
+final class SimulatedDocumentProvider implements DocumentMarkerStore.Provider {
+
+    private final File dir;
+    private final long callNanos;
+
+    SimulatedDocumentProvider(File dir, long callNanos) {
+        this.dir = dir;
+        this.callNanos = callNanos;
+    }
+
+    @Override
+    public List<DocumentMarkerStore.Document> listChildren() {
+        roundTrip();
+        List<DocumentMarkerStore.Document> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) result.add(new DocumentMarkerStore.Document(f.getName(), f.getName(), f.lastModified()));
+        }
+        return result;
+    }
+
+    @Override
+    public DocumentMarkerStore.Document create(String displayName) throws IOException {
+        roundTrip();
+        File f = new File(dir, displayName);
+        f.createNewFile();
+        return new DocumentMarkerStore.Document(f.getName(), displayName, f.lastModified());
+    }
+
+    @Override
+    public MarkerStore.Handle open(String documentId) throws IOException {
+        roundTrip();
+        return new FileMarkerStore.FileHandle(new RandomAccessFile(new File(dir, documentId), "rw").getChannel());
+    }
+
+    @Override
+    public InputStream read(String documentId) throws IOException {
+        roundTrip();
+        return new FileInputStream(new File(dir, documentId));
+    }
+
+    @Override
+    public void write(String documentId, byte[] content) throws IOException {
+        roundTrip();
+        try (FileOutputStream out = new FileOutputStream(new File(dir, documentId))) {
+            out.write(content);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return "simulated:" + dir;
+    }
+
+    private void roundTrip() {
+        long end = System.nanoTime() + callNanos;
+        while (System.nanoTime() < end) {
+            // spin; sleeping would be far coarser than a binder call
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide latency and throughput figures for the capture path.
+ *
+ * Recording is always on and cheap (a clock read and a few atomic adds, no allocation, no
+ * strings); all formatting happens in {@link #report}, which only runs while someone is looking
+ * at the numbers.
+ */
+final class CaptureMetrics {
+
+    private static final CaptureMetrics INSTANCE = new CaptureMetrics();
+
+    static CaptureMetrics get() {
+        return INSTANCE;
+    }
+
+    /** Overlay tap event to marker buffered, for taps answered from the estimate or a sync. */
+    final LatencyHistogram tapToSaved = new LatencyHistogram("tap→saved");
+    /** The same for captures triggered by a volume-key chord or the headset button. */
+    final LatencyHistogram keyToSaved = new LatencyHistogram("key→saved");
+    /** Input event time to the capture being queued: touch dispatch vs. key dispatch. */
+    final LatencyHistogram touchInput = new LatencyHistogram("touch in");
+    final LatencyHistogram keyInput = new LatencyHistogram("key in");
+    /** Tap event to the sync reply that completed a parked capture. */
+    final LatencyHistogram tapToSync = new LatencyHistogram("tap→sync");
+    final LatencyHistogram resolve = new LatencyHistogram("resolve");
+    /** Flushing buffered lines to the marker files. */
+    final LatencyHistogram write = new LatencyHistogram("write");
+    /** Foreground switch to PowerAmp until the first frame with the overlay re-attached. */
+    final LatencyHistogram overlayShow = new LatencyHistogram("overlay");
+    /** Time spent handling each foreground-detector event. */
+    final LatencyHistogram foregroundDetect = new LatencyHistogram("fg detect");
+    /** Loading a track's recent markers into memory, once per track until evicted. */
+    final LatencyHistogram recentLoad = new LatencyHistogram("recent load");
+
+    final AtomicLong captures = new AtomicLong();
+    final AtomicLong deduplicated = new AtomicLong();
+    final AtomicLong syncRequests = new AtomicLong();
+    final AtomicLong syncTimeouts = new AtomicLong();
+    /** Second deliveries of a broadcast already ingested through the other receiver. */
+    final AtomicLong duplicateBroadcasts = new AtomicLong();
+    /** PowerAmp notification posts that changed metadata vs. identical reposts that were dropped. */
+    final AtomicLong notificationsPublished = new AtomicLong();
+    final AtomicLong notificationsSuppressed = new AtomicLong();
+
+    /**
+     * Cold start of the service in ms from process start (or from onCreate if the process was
+     * already running): onCreate entered, overlay shown, and capture path ready with the journal
+     * replayed. -1 until measured; {@link #reset} keeps them.
+     */
+    final AtomicLong coldStartCreate = new AtomicLong(-1);
+    final AtomicLong coldStartOverlay = new AtomicLong(-1);
+    final AtomicLong coldStartReady = new AtomicLong(-1);
+
+    /**
+     * Marker index totals and the track with the newest marker, published by the capture
+     * pipeline whenever the index changes. -1 and null until it has an index; {@link #reset}
+     * keeps them.
+     */
+    final AtomicLong indexedTracks = new AtomicLong(-1);
+    final AtomicLong indexedMarkers = new AtomicLong(-1);
+    volatile String latestTrack;
+    volatile long latestPositionMs;
+
+    /** Set by the capture pipeline while it runs, so the report can show source selection. */
+    volatile PositionSources positionSources;
+    /** Likewise, for the estimator's drift statistics; they last as long as the pipeline. */
+    volatile PositionEstimator positionEstimator;
+
+    final RateMeter statusBroadcasts = new RateMeter("status");
+    final RateMeter trackBroadcasts = new RateMeter("track");
+    final RateMeter posSyncBroadcasts = new RateMeter("pos sync");
+    final RateMeter playingModeBroadcasts = new RateMeter("playing mode");
+
+    private final LatencyHistogram[] histograms = {
+            tapToSaved, keyToSaved, touchInput, keyInput, tapToSync, resolve, write, overlayShow, foregroundDetect, recentLoad};
+    private final RateMeter[] rates = {statusBroadcasts, trackBroadcasts, posSyncBroadcasts, playingModeBroadcasts};
+
+    /** Multi-line plain-text summary; {@code now} is on the clock the rate meters were fed. */
+    String report(long now) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("captures=").append(captures.get())
+                .append(" dedup=").append(deduplicated.get())
+                .append(" syncs=").append(syncRequests.get())
+                .append(" timeouts=").append(syncTimeouts.get()).append('\n');
+        for (LatencyHistogram h : histograms) {
+            h.appendTo(sb);
+            sb.append('\n');
+        }
+        sb.append("broadcasts/s:");
+        for (RateMeter r : rates) {
+            sb.append(' ').append(r.getName()).append('=');
+            double rate = r.perSecond(now);
+            sb.append((long) rate).append('.').append((long) (rate * 10) % 10);
+            sb.append(" (").append(r.getTotal()).append(')');
+        }
+        sb.append(" dup=").append(duplicateBroadcasts.get()).append('\n');
+        sb.append("notifications: published=").append(notificationsPublished.get())
+                .append(" suppressed=").append(notificationsSuppressed.get())
+                .append(PlaybackState.current().notificationListenerConnected ? " (live)" : " (not connected)")
+                .append('\n');
+        sb.append("cold start ms: create=").append(coldStartCreate.get())
+                .append(" overlay=").append(coldStartOverlay.get())
+                .append(" ready=").append(coldStartReady.get()).append('\n');
+        sb.append("index: tracks=").append(indexedTracks.get())
+                .append(" markers=").append(indexedMarkers.get());
+        String latest = latestTrack;
+        if (latest != null) {
+            sb.append(" latest=").append(latest).append(" @ ")
+                    .append(new TimeFormatter(true).format(latestPositionMs));
+        }
+        PositionEstimator estimator = positionEstimator;
+        if (estimator != null) {
+            sb.append("\nestimator: ").append(estimator);
+        }
+        PositionSources sources = positionSources;
+        if (sources != null) {
+            sb.append("\nposition sources:");
+            sources.appendTo(sb, now);
+        }
+        return sb.toString();
+    }
+
+    void reset() {
+        for (LatencyHistogram h : histograms) h.reset();
+        for (RateMeter r : rates) r.reset();
+        captures.set(0);
+        deduplicated.set(0);
+        syncRequests.set(0);
+        syncTimeouts.set(0);
+        duplicateBroadcasts.set(0);
+        notificationsPublished.set(0);
+        notificationsSuppressed.set(0);
+    }
+}
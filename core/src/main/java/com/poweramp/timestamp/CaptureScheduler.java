@@ -0,0 +1,239 @@
+package com.poweramp.timestamp;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decides which playback position each tap is recorded at, and when.
+ *
+ * Taps are handed over in sequence order through {@link #begin}; each is placed at its event
+ * time less the user's reaction offset. While nothing is parked and the
+ * {@link PositionEstimator} has an estimate, i.e. an anchor and a known play state, a capture is
+ * answered from it at once and a stale anchor only triggers a background sync. Otherwise it is
+ * parked behind the earlier ones, so markers stay in tap order, and a sync goes to whichever
+ * source {@link PositionSources} rates best. The next reading, a PowerAmp broadcast through
+ * {@link #onEvent} or a pushed one through {@link #onPosition}, completes every parked capture,
+ * each wound back from the reading to its own mark time at the playback speed. Broadcast
+ * readings are dated back by half the measured request round-trip, which only sync replies are
+ * sampled for.
+ *
+ * A parked capture is handed to {@link Host#onParked} straight away, with the estimate for its
+ * mark time if there is one, so the host can journal it before any reading arrives. One left
+ * parked for {@link #SYNC_TIMEOUT_MS} falls back to that estimate, or is dropped if it had none.
+ *
+ * Clocks, timers and what happens to a resolved capture are up to the {@link Host}. Not
+ * thread-safe; call everything on the capture worker.
+ */
+final class CaptureScheduler {
+
+    interface Host {
+        /** Current time in uptime millis, the time base of tap events. */
+        long uptime();
+
+        /** Calls {@link #expire} with {@code capture} after {@code delayMs}, on the worker. */
+        void scheduleTimeout(Capture capture, long delayMs);
+
+        /** {@code capture} was resolved; its pending {@link #scheduleTimeout} is no longer needed. */
+        void cancelTimeout(Capture capture);
+
+        /**
+         * {@code capture} is waiting for a reading; the place to journal it at
+         * {@link Capture#fallbackMs}. Called before the sync goes out.
+         */
+        void onParked(Capture capture);
+
+        /** A sync is about to go out; the last chance to make a source available. */
+        void beforeSync();
+
+        /** {@code capture} is at {@code positionMs} of the track in {@code state}. */
+        void onCapture(Capture capture, long positionMs, PlaybackState state);
+
+        /**
+         * {@code capture} was dropped: no reading and no fallback within the timeout, or too
+         * many parked.
+         */
+        void onCaptureLost(Capture capture, boolean timedOut);
+    }
+
+    static final class Capture {
+        final long seq;
+        final long tapTime;
+        /** The instant the marker is for: the tap less the reaction offset. */
+        final long markTime;
+        /** Estimated position at the mark time when the capture was taken, or -1. */
+        final long fallbackMs;
+        final int trigger;
+        /** The host's journal reference for a parked capture, set in {@link Host#onParked}. */
+        long journalSeq;
+
+        Capture(long seq, long tapTime, long markTime, long fallbackMs, int trigger) {
+            this.seq = seq;
+            this.tapTime = tapTime;
+            this.markTime = markTime;
+            this.fallbackMs = fallbackMs;
+            this.trigger = trigger;
+        }
+    }
+
+    static final int MAX_PENDING = 64;
+    static final long SYNC_TIMEOUT_MS = 4000;
+    /** An estimate from an anchor older than this is still used, but a sync is sent behind it. */
+    static final long STALE_SYNC_MS = 5000;
+    /** Upper bound on how far a broadcast reading is dated back for transit time. */
+    static final long MAX_TRANSIT_MS = 250;
+
+    private final PositionEstimator estimator;
+    private final PositionSources sources;
+    private final PositionSource broadcastSource;
+    private final Host host;
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    private final TraceRecorder trace = TraceRecorder.get();
+
+    private final ArrayDeque<Capture> pending = new ArrayDeque<>();
+    private long dedupToleranceMs;
+    private long reactionOffsetMs;
+    private long lastTapTime = -1;
+
+    /** {@code broadcastSource} is the one in {@code sources} that {@link #onEvent} readings come from. */
+    CaptureScheduler(PositionEstimator estimator, PositionSources sources, PositionSource broadcastSource, Host host) {
+        this.estimator = estimator;
+        this.sources = sources;
+        this.broadcastSource = broadcastSource;
+        this.host = host;
+    }
+
+    /** Taps closer than this to the previous kept one are dropped; 0 keeps all. */
+    void setDedupToleranceMs(long dedupToleranceMs) {
+        this.dedupToleranceMs = Math.max(0, dedupToleranceMs);
+    }
+
+    /** Markers are placed this long before the tap. */
+    void setReactionOffsetMs(long reactionOffsetMs) {
+        this.reactionOffsetMs = Math.max(0, reactionOffsetMs);
+    }
+
+    int pendingCount() {
+        return pending.size();
+    }
+
+    /** Handles tap {@code seq} at {@code tapTime}; taps must arrive in sequence order. */
+    void begin(long seq, long tapTime, int trigger) {
+        trace.record(TraceRecorder.Event.TAP, seq, tapTime);
+        if (dedupToleranceMs > 0 && lastTapTime >= 0 && tapTime - lastTapTime < dedupToleranceMs) {
+            metrics.deduplicated.incrementAndGet();
+            trace.record(TraceRecorder.Event.TAP_DEDUPED, seq, dedupToleranceMs);
+            return;
+        }
+        lastTapTime = tapTime;
+        long markTime = tapTime - reactionOffsetMs;
+        long estimate = estimator.estimate(markTime);
+        Capture capture = new Capture(seq, tapTime, markTime, estimate, trigger);
+
+        if (pending.isEmpty() && estimate >= 0) {
+            // Answer from the estimate; a stale anchor only triggers a background correction
+            trace.record(TraceRecorder.Event.CAPTURE_ESTIMATED, seq, estimate);
+            host.onCapture(capture, estimate, PlaybackState.current());
+            if (host.uptime() - estimator.getLastSyncTime() > STALE_SYNC_MS) {
+                requestSync();
+            }
+            return;
+        }
+
+        if (pending.size() >= MAX_PENDING) {
+            host.onCaptureLost(capture, false);
+            return;
+        }
+
+        // No estimate yet (no anchor, or no play state to extrapolate it with), or earlier taps
+        // are still waiting, so queue behind them for a sync reply to keep markers in tap order
+        pending.addLast(capture);
+        trace.record(TraceRecorder.Event.CAPTURE_PARKED, seq, pending.size());
+        host.scheduleTimeout(capture, SYNC_TIMEOUT_MS);
+        host.onParked(capture);
+        // After the timeout is armed: a local source may answer before this returns
+        requestSync();
+    }
+
+    /**
+     * Timeout of {@code capture}: completes it at its fallback, if any. Does nothing if a
+     * reading already completed it.
+     */
+    void expire(Capture capture) {
+        if (pending.remove(capture)) {
+            metrics.syncTimeouts.incrementAndGet();
+            trace.record(TraceRecorder.Event.SYNC_TIMEOUT, capture.seq);
+            if (capture.fallbackMs >= 0) {
+                host.onCapture(capture, capture.fallbackMs, PlaybackState.current());
+            } else {
+                host.onCaptureLost(capture, true);
+            }
+        }
+    }
+
+    /** Periodic drift correction; only worth a request while the position is moving. */
+    void requestDriftSync() {
+        if (estimator.isPlaying()) {
+            requestSync();
+        }
+    }
+
+    private void requestSync() {
+        host.beforeSync();
+        long now = host.uptime();
+        PositionSource source = sources.select(now);
+        sources.onRequest(source, now);
+        metrics.syncRequests.incrementAndGet();
+        trace.record(TraceRecorder.Event.SYNC_REQUESTED, pending.size(), sources.indexOf(source));
+        source.requestPosition();
+    }
+
+    /** A PowerAmp broadcast that survived {@link PowerAmpIngest}; {@code state} is what it published. */
+    void onEvent(PowerAmpEvent event, PlaybackState state) {
+        // Only a TPOS_SYNC answers our request; STATUS and the rest come whenever PowerAmp likes
+        boolean reply = event.kind == PowerAmpEvent.Kind.POSITION_SYNC;
+        boolean selected = event.positionMs >= 0 && sources.onReport(broadcastSource, event.uptime, reply);
+        // PowerAmp read the position before the broadcast travelled to us
+        long readingTime = event.uptime - Math.min(sources.transitMs(broadcastSource), MAX_TRANSIT_MS);
+        if (event.kind == PowerAmpEvent.Kind.TRACK) {
+            estimator.onTrackChanged(Math.max(event.positionMs, 0), readingTime);
+        } else if (event.positionMs >= 0 && (selected || !estimator.hasAnchor())) {
+            estimator.onSync(event.positionMs, broadcastSource.getResolutionMs(), readingTime);
+        }
+        if (event.kind == PowerAmpEvent.Kind.STATUS && event.hasPaused) {
+            estimator.setPlaying(!event.paused, readingTime);
+        }
+        if (event.positionMs >= 0) {
+            completeParked(state, event.positionMs, estimator.isPlaying(), readingTime);
+        }
+    }
+
+    /** A reading pushed by {@code source}, e.g. the media session; see {@link PositionSource.Listener}. */
+    void onPosition(PositionSource source, long positionMs, boolean playing, float speed, long uptime,
+            boolean reply) {
+        if (sources.onReport(source, uptime, reply) || !estimator.hasAnchor()) {
+            estimator.setSpeed(speed, uptime);
+            estimator.onSync(positionMs, source.getResolutionMs(), uptime);
+            estimator.setPlaying(playing, uptime);
+        }
+        completeParked(PlaybackState.current(), positionMs, playing, uptime);
+    }
+
+    /**
+     * Completes every parked capture from a fresh reading, taken at {@code uptime}. While
+     * playing, each is wound back to its own mark time at the current speed, since the reading
+     * came after the tap.
+     */
+    private void completeParked(PlaybackState state, long positionMs, boolean playing, long uptime) {
+        Capture capture;
+        while ((capture = pending.pollFirst()) != null) {
+            host.cancelTimeout(capture);
+            long waited = host.uptime() - capture.tapTime;
+            metrics.tapToSync.recordMillis(waited);
+            trace.record(TraceRecorder.Event.CAPTURE_SYNCED, capture.seq, waited);
+            long position = positionMs;
+            if (playing) {
+                position = Math.max(0, positionMs - (long) ((uptime - capture.markTime) * estimator.getSpeed()));
+            }
+            host.onCapture(capture, position, state);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.poweramp.timestamp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Marker files in a folder reached through a document provider (the Storage Access Framework
+ * on Android), for devices that will not grant all-files access.
+ *
+ * Every provider call is an IPC round-trip, and looking documents up one by one is what makes
+ * the naive approach slow. Here the folder is listed with a single query the first time any
+ * file is needed, and document ids are cached per track from then on. A tap on a known track
+ * costs no provider call at all, since {@link MarkerWriter} keeps the handle open; a new track
+ * costs one create. The cache is updated on create, so it never needs a second listing.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class DocumentMarkerStore implements MarkerStore {
+
+    /** One child of the folder, as returned by a listing or a create. */
+    static final class Document {
+        final String id;
+        final String displayName;
+        final long lastModified;
+
+        Document(String id, String displayName, long lastModified) {
+            this.id = id;
+            this.displayName = displayName;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** The provider calls this store needs; each one may be a round-trip. */
+    interface Provider {
+        /** Every child of the folder, in one query. */
+        List<Document> listChildren() throws IOException;
+
+        /** Creates an empty plain-text child and returns it. */
+        Document create(String displayName) throws IOException;
+
+        Handle open(String documentId) throws IOException;
+
+        InputStream read(String documentId) throws IOException;
+
+        /** Overwrites the document, truncating it to {@code content}. */
+        void write(String documentId, byte[] content) throws IOException;
+
+        String describe();
+    }
+
+    private final Provider provider;
+    private final Map<String, Document> documents = new HashMap<>();
+    private boolean listed;
+    private long providerCalls;
+
+    DocumentMarkerStore(Provider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Handle open(String name) throws IOException {
+        Document doc = find(name);
+        if (doc == null) {
+            doc = provider.create(name + ".txt");
+            providerCalls++;
+            documents.put(name, doc);
+        }
+        providerCalls++;
+        return provider.open(doc.id);
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException {
+        Document doc = find(name);
+        if (doc == null) throw new FileNotFoundException(name + ".txt in " + describe());
+        providerCalls++;
+        return provider.read(doc.id);
+    }
+
+    /** Always lists the folder again, which also refreshes the cached modification times. */
+    @Override
+    public List<String> names() throws IOException {
+        list();
+        return new ArrayList<>(documents.keySet());
+    }
+
+    @Override
+    public long lastModified(String name) throws IOException {
+        Document doc = find(name);
+        return doc == null ? 0 : doc.lastModified;
+    }
+
+    /** Not atomic: providers have no rename-over, so a crash mid-write can truncate the file. */
+    @Override
+    public void replace(String name, byte[] content) throws IOException {
+        Document doc = find(name);
+        if (doc == null) {
+            doc = provider.create(name + ".txt");
+            providerCalls++;
+            documents.put(name, doc);
+        }
+        providerCalls++;
+        provider.write(doc.id, content);
+    }
+
+    @Override
+    public String describe() {
+        return provider.describe();
+    }
+
+    /** Provider round-trips made so far. */
+    long getProviderCalls() {
+        return providerCalls;
+    }
+
+    private Document find(String name) throws IOException {
+        Document doc = documents.get(name);
+        if (doc == null && !listed) {
+            list();
+            doc = documents.get(name);
+        }
+        return doc;
+    }
+
+    private void list() throws IOException {
+        List<Document> children = provider.listChildren();
+        providerCalls++;
+        documents.clear();
+        for (Document doc : children) {
+            String displayName = doc.displayName;
+            if (displayName != null && displayName.endsWith(".txt")) {
+                documents.put(displayName.substring(0, displayName.length() - 4), doc);
+            }
+        }
+        listed = true;
+    }
+}
@@ -0,0 +1,111 @@
+package com.poweramp.timestamp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Marker files as {@code <name>.txt} in a directory, through plain file channels. */
+final class FileMarkerStore implements MarkerStore {
+
+    // Package-private so other stores and benchmarks can wrap a plain file
+    static final class FileHandle implements Handle {
+        private final FileChannel channel;
+
+        FileHandle(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private final File dir;
+
+    FileMarkerStore(File dir) {
+        this.dir = dir;
+    }
+
+    File fileFor(String name) {
+        return new File(dir, name + ".txt");
+    }
+
+    @Override
+    public Handle open(String name) throws IOException {
+        dir.mkdirs();
+        return new FileHandle(new RandomAccessFile(fileFor(name), "rw").getChannel());
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException {
+        return new FileInputStream(fileFor(name));
+    }
+
+    @Override
+    public List<String> names() throws IOException {
+        String[] list = dir.list();
+        if (list == null) {
+            if (!dir.exists()) return new ArrayList<>();
+            throw new IOException("Cannot list " + dir);
+        }
+        List<String> names = new ArrayList<>(list.length);
+        for (String fileName : list) {
+            if (fileName.endsWith(".txt") && new File(dir, fileName).isFile()) {
+                names.add(fileName.substring(0, fileName.length() - 4));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public long lastModified(String name) {
+        return fileFor(name).lastModified();
+    }
+
+    @Override
+    public void replace(String name, byte[] content) throws IOException {
+        File file = fileFor(name);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(content);
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    @Override
+    public String describe() {
+        return dir.getPath();
+    }
+}
@@ -0,0 +1,43 @@
+package com.poweramp.timestamp;
+
+/**
+ * Turns a track title or path into a marker file base name.
+ *
+ * Keeps only the last path segment, drops the extension, replaces characters that are illegal
+ * in file names ({@code \ / : * ? " < > |}) with {@code _} and trims. Single pass over a lookup
+ * table; equivalent to the old {@code substring}/{@code replaceAll} chain.
+ */
+final class FilenameSanitizer {
+
+    private static final boolean[] ILLEGAL = new boolean[128];
+
+    static {
+        for (char c : "\\/:*?\"<>|".toCharArray()) {
+            ILLEGAL[c] = true;
+        }
+    }
+
+    private FilenameSanitizer() {
+    }
+
+    static String clean(String filename) {
+        if (filename == null || filename.isEmpty()) return "";
+        int start = filename.lastIndexOf('/') + 1;
+        int end = filename.lastIndexOf('.');
+        if (end < start) end = filename.length();
+
+        // trim() semantics: everything <= ' ' goes at both ends
+        while (start < end && filename.charAt(start) <= ' ') start++;
+        while (end > start && filename.charAt(end - 1) <= ' ') end--;
+
+        char[] out = null;
+        for (int i = start; i < end; i++) {
+            char c = filename.charAt(i);
+            if (c < 128 && ILLEGAL[c]) {
+                if (out == null) out = filename.substring(start, end).toCharArray();
+                out[i - start] = '_';
+            }
+        }
+        return out == null ? filename.substring(start, end) : new String(out);
+    }
+}
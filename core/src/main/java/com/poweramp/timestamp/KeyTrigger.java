@@ -0,0 +1,111 @@
+package com.poweramp.timestamp;
+
+/**
+ * Recognizes capture gestures in a stream of hardware key events: both volume keys pressed
+ * together, the headset button, or both, as the {@link Mode} allows. Off until a mode is set.
+ *
+ * A chord is a press of one volume key while the other has been held for at most
+ * {@link #CHORD_MS}. The first key cannot be held back without knowing whether a second
+ * follows, so it reaches the system as a normal press; the second key is consumed up to its
+ * release, and the capture is dated at the first key's press. The headset button is consumed
+ * whole while enabled, since it would otherwise also toggle playback.
+ *
+ * Key codes are Android's {@code KeyEvent} values and times are event-time uptime millis.
+ * Not thread-safe; feed it from the thread that receives the key events.
+ */
+final class KeyTrigger {
+
+    interface Sink {
+        /** {@code eventTime} is when the gesture started, the instant to capture. */
+        void onTrigger(long eventTime);
+    }
+
+    enum Mode {
+        OFF(false, false),
+        VOLUME_CHORD(true, false),
+        HEADSET(false, true),
+        BOTH(true, true);
+
+        final boolean volumeChord;
+        final boolean headset;
+
+        Mode(boolean volumeChord, boolean headset) {
+            this.volumeChord = volumeChord;
+            this.headset = headset;
+        }
+
+        /** The mode called {@code name}, or {@link #OFF} for null or anything unknown. */
+        static Mode parse(String name) {
+            if (name != null) {
+                for (Mode mode : values()) {
+                    if (mode.name().equals(name)) return mode;
+                }
+            }
+            return OFF;
+        }
+    }
+
+    static final int KEYCODE_VOLUME_UP = 24;
+    static final int KEYCODE_VOLUME_DOWN = 25;
+    static final int KEYCODE_HEADSETHOOK = 79;
+    static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+
+    static final long CHORD_MS = 250;
+
+    private final Sink sink;
+    private volatile Mode mode = Mode.OFF;
+    // Press time of each volume key while it is held, else -1
+    private long volumeUpSince = -1;
+    private long volumeDownSince = -1;
+    // Key being swallowed until it is released, else -1
+    private int consuming = -1;
+
+    KeyTrigger(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** May be called from any thread. */
+    void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /** Feeds one key event; returns true if it belongs to a gesture and must not reach the system. */
+    boolean onKey(int keyCode, boolean down, int repeatCount, long eventTime) {
+        if (keyCode == consuming) {
+            if (!down) consuming = -1;
+            return true;
+        }
+        Mode m = mode;
+        if (keyCode == KEYCODE_HEADSETHOOK || keyCode == KEYCODE_MEDIA_PLAY_PAUSE) {
+            if (!m.headset || !down) return false;
+            consuming = keyCode;
+            sink.onTrigger(eventTime);
+            return true;
+        }
+        if (keyCode != KEYCODE_VOLUME_UP && keyCode != KEYCODE_VOLUME_DOWN) return false;
+
+        boolean up = keyCode == KEYCODE_VOLUME_UP;
+        if (!down) {
+            if (up) volumeUpSince = -1;
+            else volumeDownSince = -1;
+            return false;
+        }
+        // Auto-repeats of a held key are not new presses
+        if (!m.volumeChord || repeatCount > 0) return false;
+        long other = up ? volumeDownSince : volumeUpSince;
+        if (other >= 0 && eventTime - other <= CHORD_MS) {
+            volumeUpSince = -1;
+            volumeDownSince = -1;
+            consuming = keyCode;
+            sink.onTrigger(other);
+            return true;
+        }
+        if (up) volumeUpSince = eventTime;
+        else volumeDownSince = eventTime;
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory log-linear histogram of durations in microseconds.
+ *
+ * Values below 32µs get exact buckets; above that every power of two is split into 16 buckets,
+ * so percentiles are within ~6% of the true value. Values past ~18 hours land in the last
+ * bucket. Recording is a handful of atomic adds and never allocates; it may happen on any
+ * thread while another thread reads.
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MIN_EXP = 5; // log2(LINEAR)
+    private static final int MAX_EXP = 35;
+    private static final int BUCKETS = LINEAR + (MAX_EXP - MIN_EXP + 1) * SUB;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void recordMicros(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            // retry
+        }
+    }
+
+    void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    void recordMillis(long millis) {
+        recordMicros(millis * 1000);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /** Upper bound of the bucket holding the {@code p}-th percentile (0-100), or 0 if empty. */
+    long percentileMicros(double p) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** Appends one summary line, e.g. {@code resolve n=12 p50=0.04ms ... max=1.20ms}. */
+    void appendTo(StringBuilder sb) {
+        sb.append(name);
+        for (int i = name.length(); i < 10; i++) sb.append(' ');
+        sb.append(" n=").append(getCount());
+        appendMs(sb.append(" p50="), percentileMicros(50));
+        appendMs(sb.append(" p90="), percentileMicros(90));
+        appendMs(sb.append(" p99="), percentileMicros(99));
+        appendMs(sb.append(" max="), getMaxMicros());
+    }
+
+    static void appendMs(StringBuilder sb, long micros) {
+        long hundredths = (micros + 5) / 10;
+        sb.append(hundredths / 100).append('.');
+        long frac = hundredths % 100;
+        if (frac < 10) sb.append('0');
+        sb.append(frac).append("ms");
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        if (exp > MAX_EXP) return BUCKETS - 1;
+        int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - MIN_EXP) * SUB + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exp = (bucket - LINEAR) / SUB + MIN_EXP;
+        int sub = (bucket - LINEAR) % SUB;
+        return ((long) (SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
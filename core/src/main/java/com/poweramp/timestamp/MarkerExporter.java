@@ -0,0 +1,204 @@
+package com.poweramp.timestamp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the per-track marker files of a {@link MarkerStore} into machine-readable exports.
+ *
+ * Every marker file is read line by line through a buffered reader and written straight
+ * to the output, so memory use does not depend on library size (only CUE sheets hold one
+ * track's markers, to sort them). Passing {@code since} restricts the export to files modified
+ * after that wall-clock time.
+ */
+final class MarkerExporter {
+
+    enum Format {
+        /** One file, {@code track,index,position_ms,timestamp} rows. */
+        CSV("csv"),
+        /** One file, one JSON object per marker. */
+        JSON_LINES("jsonl"),
+        /** One {@code <track>.cue} per track, a CUE track per distinct marker. */
+        CUE("cue");
+
+        final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    static final class Result {
+        int files;
+        long markers;
+        /** Markers left out of CUE sheets beyond the format's 99-track limit. */
+        long skipped;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CUE_MAX_TRACKS = 99;
+
+    private final TimeFormatter formatter = new TimeFormatter(true);
+    private final char[] scratch = new char[TimeFormatter.MAX_LENGTH];
+
+    /**
+     * Exports every marker file in {@code store} modified after {@code since} (0 for all).
+     * {@code out} is the output file for CSV and JSON Lines, or the output directory for CUE.
+     */
+    Result export(MarkerStore store, Format format, File out, long since) throws IOException {
+        Result result = new Result();
+        List<String> names = store.names();
+        Collections.sort(names);
+
+        if (format == Format.CUE) {
+            if (!out.isDirectory() && !out.mkdirs()) throw new IOException("Cannot create " + out);
+            for (String track : names) {
+                if (store.lastModified(track) <= since) continue;
+                writeCue(store, track, new File(out, track + ".cue"), result);
+                result.files++;
+            }
+            return result;
+        }
+
+        File parent = out.getParentFile();
+        if (parent != null) parent.mkdirs();
+        try (Writer w = open(out)) {
+            if (format == Format.CSV) w.write("track,index,position_ms,timestamp\n");
+            for (String track : names) {
+                if (store.lastModified(track) <= since) continue;
+                String quoted = format == Format.CSV ? csv(track) : json(track);
+                try (BufferedReader in = read(store, track)) {
+                    in.readLine(); // name header
+                    String line;
+                    int index = 0;
+                    while ((line = in.readLine()) != null) {
+                        long position = TimeFormatter.parse(line);
+                        if (position < 0) continue;
+                        if (format == Format.CSV) {
+                            w.write(quoted);
+                            w.write(',');
+                            w.write(Integer.toString(index));
+                            w.write(',');
+                            w.write(Long.toString(position));
+                            w.write(',');
+                            w.write(scratch, 0, formatter.format(position, scratch, 0));
+                            w.write('\n');
+                        } else {
+                            w.write("{\"track\":");
+                            w.write(quoted);
+                            w.write(",\"index\":");
+                            w.write(Integer.toString(index));
+                            w.write(",\"position_ms\":");
+                            w.write(Long.toString(position));
+                            w.write(",\"timestamp\":\"");
+                            w.write(scratch, 0, formatter.format(position, scratch, 0));
+                            w.write("\"}\n");
+                        }
+                        index++;
+                        result.markers++;
+                    }
+                }
+                result.files++;
+            }
+        }
+        return result;
+    }
+
+    private void writeCue(MarkerStore store, String track, File target, Result result) throws IOException {
+        long[] positions = new long[16];
+        int count = 0;
+        try (BufferedReader in = read(store, track)) {
+            in.readLine(); // name header
+            String line;
+            while ((line = in.readLine()) != null) {
+                long position = TimeFormatter.parse(line);
+                if (position < 0) continue;
+                if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+                positions[count++] = position;
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        try (Writer w = open(target)) {
+            String title = cueString(track);
+            w.write("TITLE " + title + "\n");
+            // The audio path is not recorded with the markers; tools remap FILE to the real track
+            w.write("FILE " + title + " WAVE\n");
+            int written = 0;
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && positions[i] == positions[i - 1]) continue;
+                if (written == CUE_MAX_TRACKS) {
+                    result.skipped++;
+                    continue;
+                }
+                written++;
+                w.write("  TRACK " + twoDigits(written) + " AUDIO\n");
+                w.write("    TITLE \"Marker " + written + "\"\n");
+                w.write("    INDEX 01 " + cueTime(positions[i]) + "\n");
+                result.markers++;
+            }
+        }
+    }
+
+    private static BufferedReader read(MarkerStore store, String track) throws IOException {
+        return new BufferedReader(new InputStreamReader(store.read(track), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static Writer open(File f) throws IOException {
+        FileChannel channel = new FileOutputStream(f).getChannel();
+        return new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), BUFFER_SIZE);
+    }
+
+    /** CUE {@code mm:ss:ff} with 75 frames per second; minutes grow past 99. */
+    static String cueTime(long ms) {
+        long frames = ms * 75 / 1000;
+        long minutes = frames / (75 * 60);
+        int seconds = (int) (frames / 75 % 60);
+        int frame = (int) (frames % 75);
+        return twoDigits(minutes) + ":" + twoDigits(seconds) + ":" + twoDigits(frame);
+    }
+
+    private static String twoDigits(long value) {
+        return value < 10 ? "0" + value : Long.toString(value);
+    }
+
+    static String csv(String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        return quote ? '"' + value.replace("\"", "\"\"") + '"' : value;
+    }
+
+    static String json(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String cueString(String value) {
+        // CUE has no escape sequences
+        return '"' + value.replace('"', '\'') + '"';
+    }
+}
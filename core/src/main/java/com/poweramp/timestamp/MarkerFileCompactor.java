@@ -0,0 +1,83 @@
+package com.poweramp.timestamp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites a marker file into sorted-file form: the name header, then marker lines in ascending
+ * position with near-duplicates removed. Lines that are not markers are kept, after the markers.
+ * Used to migrate files written in tap order before {@link MarkerWriter} keeps them sorted.
+ */
+final class MarkerFileCompactor {
+
+    private static final class Line {
+        final String text;
+        final long positionMs;
+
+        Line(String text, long positionMs) {
+            this.text = text;
+            this.positionMs = positionMs;
+        }
+    }
+
+    private static final Comparator<Line> BY_POSITION = new Comparator<Line>() {
+        @Override
+        public int compare(Line a, Line b) {
+            return a.positionMs < b.positionMs ? -1 : a.positionMs == b.positionMs ? 0 : 1;
+        }
+    };
+
+    private MarkerFileCompactor() {
+    }
+
+    /**
+     * Sorts and deduplicates {@code name}'s file in {@code store}; markers at most
+     * {@code toleranceMs} after a kept one are dropped. The file is replaced (atomically where
+     * the store can) only if something changed. Returns true if it was rewritten.
+     */
+    static boolean compact(MarkerStore store, String name, long toleranceMs) throws IOException {
+        byte[] out = compact(MarkerStore.readAll(store, name), toleranceMs);
+        if (out == null) return false;
+        store.replace(name, out);
+        return true;
+    }
+
+    /** The sorted form of {@code data}, or null if it already is sorted and deduplicated. */
+    static byte[] compact(byte[] data, long toleranceMs) {
+        String[] lines = new String(data, StandardCharsets.UTF_8).split("\n", -1);
+        if (lines.length < 2) return null;
+
+        List<Line> markers = new ArrayList<>(lines.length);
+        List<String> other = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            String text = lines[i];
+            if (text.isEmpty()) continue;
+            long position = TimeFormatter.parse(text);
+            if (position >= 0) {
+                markers.add(new Line(text.trim(), position));
+            } else {
+                other.add(text);
+            }
+        }
+        // Stable, so equal positions keep their original order
+        Line[] sorted = markers.toArray(new Line[0]);
+        Arrays.sort(sorted, BY_POSITION);
+
+        StringBuilder sb = new StringBuilder(data.length);
+        sb.append(lines[0]).append('\n');
+        long lastKept = Long.MIN_VALUE;
+        for (Line line : sorted) {
+            if (lastKept != Long.MIN_VALUE && line.positionMs - lastKept <= toleranceMs) continue;
+            lastKept = line.positionMs;
+            sb.append(line.text).append('\n');
+        }
+        for (String text : other) sb.append(text).append('\n');
+
+        byte[] out = sb.toString().getBytes(StandardCharsets.UTF_8);
+        return Arrays.equals(out, data) ? null : out;
+    }
+}
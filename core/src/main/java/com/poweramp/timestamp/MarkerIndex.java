@@ -0,0 +1,314 @@
+package com.poweramp.timestamp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Index of every marker across the library, so "which tracks have markers", counts and "latest
+ * marker" never need a directory listing.
+ *
+ * Tracks are kept in a name-ordered tree and a recency-ordered tree, so lookups and latest-first
+ * queries are O(log n). On disk the index is a snapshot plus an append-only log of markers added
+ * since; each capture costs one small buffered log record. Once the log grows past
+ * {@link #COMPACT_AFTER} records it is folded into a fresh snapshot. Both files carry a
+ * generation so a log that was already folded in is ignored if the process died mid-compaction.
+ *
+ * The per-track {@code .txt} files remain the user-facing view; {@link #rebuild} recreates
+ * the index from them when there is no snapshot yet.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class MarkerIndex implements Closeable {
+
+    static final class Track {
+        final String name;
+        private long[] positions = new long[4];
+        private int count;
+        long lastWallTime;
+        long lastPositionMs;
+
+        Track(String name) {
+            this.name = name;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /** Marker positions in capture order. */
+        long position(int i) {
+            if (i >= count) throw new IndexOutOfBoundsException(i + " >= " + count);
+            return positions[i];
+        }
+
+        private void add(long positionMs) {
+            if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+            positions[count++] = positionMs;
+        }
+    }
+
+    static final int COMPACT_AFTER = 1024;
+
+    private static final int MAGIC = 0x4d494458; // "MIDX"
+    private static final int VERSION = 1;
+
+    private static final Comparator<Track> RECENCY = new Comparator<Track>() {
+        @Override
+        public int compare(Track a, Track b) {
+            if (a.lastWallTime != b.lastWallTime) return a.lastWallTime < b.lastWallTime ? -1 : 1;
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private final File snapshotFile;
+    private final File logFile;
+    private final TreeMap<String, Track> byName = new TreeMap<>();
+    private final TreeSet<Track> byRecency = new TreeSet<>(RECENCY);
+    private long markerCount;
+    private long generation;
+    private boolean hasSnapshot;
+
+    private DataOutputStream log;
+    private int logRecords;
+
+    MarkerIndex(File snapshotFile, File logFile) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        hasSnapshot = readSnapshot();
+        if (hasSnapshot) replayLog();
+    }
+
+    /** False until the index has been written once, i.e. it should be {@link #rebuild rebuilt}. */
+    boolean hasSnapshot() {
+        return hasSnapshot;
+    }
+
+    /** Records a marker and appends it to the log; {@link #flush()} makes it durable. */
+    void add(String name, long positionMs, long wallTime) throws IOException {
+        apply(name, positionMs, wallTime);
+        DataOutputStream out = openLog();
+        out.writeUTF(name);
+        out.writeLong(positionMs);
+        out.writeLong(wallTime);
+        logRecords++;
+    }
+
+    Track get(String name) {
+        return byName.get(name);
+    }
+
+    int trackCount() {
+        return byName.size();
+    }
+
+    long markerCount() {
+        return markerCount;
+    }
+
+    /** Track with the most recent marker, or null if there are none. */
+    Track latest() {
+        return byRecency.isEmpty() ? null : byRecency.last();
+    }
+
+    /** All tracks in name order; a live view, do not modify the index while iterating. */
+    Collection<Track> tracks() {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    /** Writes the log out, compacting it into the snapshot if it has grown large. */
+    void flush() throws IOException {
+        if (logRecords >= COMPACT_AFTER) {
+            compact();
+        } else if (log != null) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Replaces the index with what the marker files in {@code store} contain and writes a
+     * snapshot. Returns the number of files read.
+     */
+    int rebuild(MarkerStore store) throws IOException {
+        byName.clear();
+        byRecency.clear();
+        markerCount = 0;
+
+        List<String> names = store.names();
+        for (String name : names) {
+            readMarkerFile(store, name);
+        }
+        compact();
+        return names.size();
+    }
+
+    /** Folds the log into a new snapshot and starts an empty log. */
+    void compact() throws IOException {
+        closeLog();
+        generation++;
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(byName.size());
+            for (Track t : byName.values()) {
+                out.writeUTF(t.name);
+                out.writeLong(t.lastWallTime);
+                out.writeLong(t.lastPositionMs);
+                out.writeInt(t.count);
+                for (int i = 0; i < t.count; i++) out.writeLong(t.positions[i]);
+            }
+        }
+        if (!tmp.renameTo(snapshotFile)) {
+            throw new IOException("Cannot replace " + snapshotFile);
+        }
+        hasSnapshot = true;
+        // The old log is now stale by generation even if this truncation never happens
+        startLog();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (logRecords > 0) {
+            compact();
+        }
+        closeLog();
+    }
+
+    private void apply(String name, long positionMs, long wallTime) {
+        Track track = byName.get(name);
+        if (track == null) {
+            track = new Track(name);
+            byName.put(name, track);
+        } else {
+            byRecency.remove(track);
+        }
+        track.add(positionMs);
+        if (wallTime >= track.lastWallTime) {
+            track.lastWallTime = wallTime;
+            track.lastPositionMs = positionMs;
+        }
+        byRecency.add(track);
+        markerCount++;
+    }
+
+    private void readMarkerFile(MarkerStore store, String name) throws IOException {
+        long wallTime = store.lastModified(name);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(store.read(name), StandardCharsets.UTF_8))) {
+            // First line is the track name header
+            String line = in.readLine();
+            while ((line = in.readLine()) != null) {
+                long position = TimeFormatter.parse(line);
+                if (position >= 0) apply(name, position, wallTime);
+            }
+        }
+    }
+
+    private boolean readSnapshot() throws IOException {
+        if (!snapshotFile.isFile()) return false;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFully(snapshotFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+            generation = in.readLong();
+            int tracks = in.readInt();
+            for (int i = 0; i < tracks; i++) {
+                Track t = new Track(in.readUTF());
+                t.lastWallTime = in.readLong();
+                t.lastPositionMs = in.readLong();
+                int count = in.readInt();
+                t.positions = new long[Math.max(4, count)];
+                for (int j = 0; j < count; j++) t.positions[j] = in.readLong();
+                t.count = count;
+                byName.put(t.name, t);
+                byRecency.add(t);
+                markerCount += count;
+            }
+            return true;
+        } catch (EOFException e) {
+            // Truncated snapshot; start over from the text files
+            byName.clear();
+            byRecency.clear();
+            markerCount = 0;
+            return false;
+        }
+    }
+
+    private void replayLog() throws IOException {
+        if (!logFile.isFile()) return;
+        byte[] data = readFully(logFile);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int good = 0;
+        try {
+            // A log from an older generation was already folded into the snapshot
+            if (in.readLong() == generation) {
+                good = 8;
+                while (true) {
+                    String name = in.readUTF();
+                    long position = in.readLong();
+                    long wallTime = in.readLong();
+                    apply(name, position, wallTime);
+                    logRecords++;
+                    good = data.length - in.available();
+                }
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // End of log, possibly with a record cut short by a crash
+        }
+        if (good == 0) {
+            logFile.delete();
+        } else if (good < data.length) {
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                raf.setLength(good);
+            }
+        }
+    }
+
+    private DataOutputStream openLog() throws IOException {
+        if (log == null) {
+            boolean fresh = !logFile.isFile() || logFile.length() == 0;
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+            if (fresh) log.writeLong(generation);
+        }
+        return log;
+    }
+
+    private void startLog() throws IOException {
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, false)));
+        log.writeLong(generation);
+        log.flush();
+        logRecords = 0;
+    }
+
+    private void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private static byte[] readFully(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.poweramp.timestamp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Write-ahead journal for captured markers.
+ *
+ * Every capture is first stored as a fixed-size record in a memory-mapped file, which costs a
+ * handful of buffer writes and survives the process dying. Records are folded into the per-track
+ * text files later; once that has happened the owner calls {@link #markMaterialized(long)}.
+ * Anything not yet materialized is returned by {@link #unmaterialized()} on the next start.
+ *
+ * Tracks are identified by a 64-bit hash of their cleaned name. The id-to-name mapping lives in
+ * a small side file that is appended to once per new track.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class MarkerJournal implements Closeable {
+
+    static final class Record {
+        final long seq;
+        final long trackId;
+        final long positionMs;
+        final long wallTime;
+
+        Record(long seq, long trackId, long positionMs, long wallTime) {
+            this.seq = seq;
+            this.trackId = trackId;
+            this.positionMs = positionMs;
+            this.wallTime = wallTime;
+        }
+    }
+
+    private static final int MAGIC = 0x4d4a524e; // "MJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 40;
+    private static final int OFF_MATERIALIZED = 8;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final File namesFile;
+    private final HashMap<Long, String> names = new HashMap<>();
+
+    private int writeIndex;
+    private long lastSeq;
+    private long materializedSeq;
+
+    MarkerJournal(File journalFile, File namesFile, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.namesFile = namesFile;
+        file = new RandomAccessFile(journalFile, "rw");
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            for (int i = 0; i < map.capacity(); i += 8) map.putLong(i, 0);
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+        }
+        materializedSeq = map.getLong(OFF_MATERIALIZED);
+
+        // The live run starts at slot 0 and has strictly increasing sequence numbers; anything
+        // after it is left over from before the last rewind.
+        long prev = 0;
+        int count = 0;
+        while (count < capacity) {
+            Record r = read(count);
+            if (r == null || r.seq <= prev) break;
+            prev = r.seq;
+            count++;
+        }
+        lastSeq = Math.max(materializedSeq, prev);
+        writeIndex = prev > materializedSeq ? count : 0;
+        loadNames();
+    }
+
+    /** Returns the id for {@code name}, recording the mapping on first use. */
+    long trackId(String name) throws IOException {
+        long id = hash(name);
+        if (!names.containsKey(id)) {
+            OutputStream out = new FileOutputStream(namesFile, true);
+            try {
+                out.write((id + "\t" + name + "\n").getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+            names.put(id, name);
+        }
+        return id;
+    }
+
+    String trackName(long trackId) {
+        return names.get(trackId);
+    }
+
+    /** Appends a record and returns its sequence number, or -1 if the journal is full. */
+    long append(long trackId, long positionMs, long wallTime) {
+        if (writeIndex >= capacity) return -1;
+        long seq = lastSeq + 1;
+        int off = HEADER_SIZE + writeIndex * RECORD_SIZE;
+        map.putLong(off + 8, trackId);
+        map.putLong(off + 16, positionMs);
+        map.putLong(off + 24, wallTime);
+        map.putLong(off + 32, checksum(seq, trackId, positionMs, wallTime));
+        // Sequence number last: it is what makes the record visible to a replay
+        map.putLong(off, seq);
+        lastSeq = seq;
+        writeIndex++;
+        return seq;
+    }
+
+    /** Records that were appended but never materialized, oldest first. */
+    List<Record> unmaterialized() {
+        List<Record> out = new ArrayList<>();
+        for (int i = 0; i < writeIndex; i++) {
+            Record r = read(i);
+            if (r != null && r.seq > materializedSeq) out.add(r);
+        }
+        return out;
+    }
+
+    boolean hasUnmaterialized() {
+        return lastSeq > materializedSeq;
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Declares every record up to {@code seq} folded into the text files. When nothing is left
+     * outstanding the journal rewinds so the next append reuses the first slot.
+     */
+    void markMaterialized(long seq) {
+        if (seq <= materializedSeq) return;
+        materializedSeq = Math.min(seq, lastSeq);
+        map.putLong(OFF_MATERIALIZED, materializedSeq);
+        if (materializedSeq == lastSeq) {
+            writeIndex = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private Record read(int index) {
+        int off = HEADER_SIZE + index * RECORD_SIZE;
+        long seq = map.getLong(off);
+        if (seq == 0) return null;
+        long trackId = map.getLong(off + 8);
+        long positionMs = map.getLong(off + 16);
+        long wallTime = map.getLong(off + 24);
+        if (map.getLong(off + 32) != checksum(seq, trackId, positionMs, wallTime)) return null;
+        return new Record(seq, trackId, positionMs, wallTime);
+    }
+
+    private void loadNames() throws IOException {
+        if (!namesFile.exists()) return;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(namesFile), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue;
+                try {
+                    names.put(Long.parseLong(line.substring(0, tab)), line.substring(tab + 1));
+                } catch (NumberFormatException ignored) {
+                    // Torn last line from a crash mid-append
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long checksum(long seq, long trackId, long positionMs, long wallTime) {
+        return seq ^ Long.rotateLeft(trackId, 13) ^ Long.rotateLeft(positionMs, 29)
+                ^ Long.rotateLeft(wallTime, 47) ^ MAGIC;
+    }
+
+    /** 64-bit FNV-1a over the UTF-16 code units of {@code name}. */
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
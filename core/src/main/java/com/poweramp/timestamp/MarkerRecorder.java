@@ -0,0 +1,271 @@
+package com.poweramp.timestamp;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Disk side of a capture: resolves the track, journals the marker and buffers its text line.
+ *
+ * Ties {@link TrackResolver}, {@link TimeFormatter}, {@link MarkerJournal} and
+ * {@link MarkerWriter} together so the whole capture-to-disk path can run (and be measured)
+ * without Android. Scheduling of {@link #materialize()} and {@link #closeFiles()} is left to the
+ * owner. The journal and the {@link MarkerIndex} are optional; without a journal lines go
+ * straight to the writer.
+ *
+ * A capture still waiting for its position can be {@link #hold held} in a second journal at a
+ * fallback position as soon as it is taken, and is {@link #resolve resolved} into the main one
+ * once the position is known. Held captures resolve oldest first, so that journal is
+ * materialized up to the oldest still held; a crash in between replays them at the fallback.
+ *
+ * It also keeps {@link RecentMarkers} for the overlay: a track's entry is loaded the first time
+ * {@link #recent} asks for it (from the index, or from the file if there is no index) and is
+ * kept current by every capture after that.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class MarkerRecorder implements Closeable {
+
+    static final class Result {
+        final TrackResolver.ResolvedTrack track;
+        final String timestamp;
+        final boolean createdFile;
+        /** The file already had this marker (sorted mode); nothing was written or indexed. */
+        final boolean duplicate;
+
+        Result(TrackResolver.ResolvedTrack track, String timestamp, MarkerWriter.Outcome outcome) {
+            this.track = track;
+            this.timestamp = timestamp;
+            this.createdFile = outcome == MarkerWriter.Outcome.CREATED;
+            this.duplicate = outcome == MarkerWriter.Outcome.DUPLICATE;
+        }
+    }
+
+    /** Tracks kept in {@link RecentMarkers}, and markers kept per track. */
+    static final int RECENT_TRACKS = 32;
+    static final int RECENT_KEEP = 5;
+
+    private final TrackResolver resolver;
+    private final TimeFormatter formatter;
+    private final MarkerWriter writer;
+    private final MarkerJournal journal;
+    private final MarkerJournal holdJournal;
+    private final MarkerIndex index;
+    private final RecentMarkers recent;
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    /** {@link #holdJournal} sequences of captures not resolved yet, oldest first. */
+    private final ArrayDeque<Long> held = new ArrayDeque<>();
+
+    private long lastJournalSeq;
+    private TrackResolver.ResolvedTrack journalTrack;
+    private long journalTrackId;
+
+    MarkerRecorder(TrackResolver resolver, TimeFormatter formatter, MarkerWriter writer,
+            MarkerJournal journal, MarkerIndex index) {
+        this(resolver, formatter, writer, journal, null, index);
+    }
+
+    /** {@code holdJournal}, also optional, keeps {@link #hold held} captures. */
+    MarkerRecorder(TrackResolver resolver, TimeFormatter formatter, MarkerWriter writer,
+            MarkerJournal journal, MarkerJournal holdJournal, MarkerIndex index) {
+        this.resolver = resolver;
+        this.formatter = formatter;
+        this.writer = writer;
+        this.journal = journal;
+        this.holdJournal = holdJournal;
+        this.index = index;
+        this.recent = new RecentMarkers(RECENT_TRACKS, RECENT_KEEP);
+        if (journal != null) lastJournalSeq = journal.lastSeq();
+    }
+
+    /** Records a marker; returns null if no track can be identified from {@code state}. */
+    Result record(PlaybackState state, long positionMs, long wallTime) throws IOException {
+        long start = System.nanoTime();
+        TrackResolver.ResolvedTrack track = resolver.resolve(state);
+        metrics.resolve.recordNanos(System.nanoTime() - start);
+        if (track == null) return null;
+
+        if (journal != null) {
+            if (track != journalTrack) {
+                journalTrackId = journal.trackId(track.name);
+                journalTrack = track;
+            }
+            long seq = journal.append(journalTrackId, positionMs, wallTime);
+            if (seq < 0) {
+                // Journal full: fold it into the text files to free it up
+                materialize();
+                seq = journal.append(journalTrackId, positionMs, wallTime);
+            }
+            lastJournalSeq = seq;
+        }
+
+        MarkerWriter.Outcome outcome = writer.append(track.name, positionMs, formatter);
+        if (outcome != MarkerWriter.Outcome.DUPLICATE) {
+            if (index != null) index.add(track.name, positionMs, wallTime);
+            recent.add(track.name, positionMs);
+        }
+        // Only the caller's notification needs the text; the file line was formatted in place
+        return new Result(track, formatter.format(positionMs), outcome);
+    }
+
+    /**
+     * Journals a capture whose position is not known yet at {@code fallbackMs}, without writing
+     * it to its file. Returns the sequence to pass to {@link #resolve}, or 0 if nothing was
+     * journaled (no hold journal, no track, or no fallback position).
+     */
+    long hold(PlaybackState state, long fallbackMs, long wallTime) throws IOException {
+        if (holdJournal == null || fallbackMs < 0) return 0;
+        TrackResolver.ResolvedTrack track = resolver.resolve(state);
+        if (track == null) return 0;
+        long seq = holdJournal.append(holdJournal.trackId(track.name), fallbackMs, wallTime);
+        if (seq < 0) return 0;
+        held.addLast(seq);
+        return seq;
+    }
+
+    /**
+     * {@link #record Records} the capture held as {@code heldSeq} (0 if it was not) at its real
+     * position, then lets the held record go.
+     */
+    Result resolve(long heldSeq, PlaybackState state, long positionMs, long wallTime) throws IOException {
+        try {
+            return record(state, positionMs, wallTime);
+        } finally {
+            // After the record: a crash in between replays both rather than neither
+            if (heldSeq > 0 && held.remove(heldSeq)) {
+                Long oldest = held.peekFirst();
+                holdJournal.markMaterialized(oldest == null ? holdJournal.lastSeq() : oldest - 1);
+            }
+        }
+    }
+
+    /**
+     * Buffers every journal record a previous process never materialized, held captures at
+     * their fallback positions, and flushes them. Returns the number of markers recovered.
+     */
+    int replay() throws IOException {
+        int recovered = 0;
+        if (journal != null) {
+            recovered += replay(journal);
+            lastJournalSeq = journal.lastSeq();
+        }
+        if (holdJournal != null) recovered += replay(holdJournal);
+        materialize();
+        if (holdJournal != null) holdJournal.markMaterialized(holdJournal.lastSeq());
+        return recovered;
+    }
+
+    private int replay(MarkerJournal from) throws IOException {
+        int recovered = 0;
+        for (MarkerJournal.Record record : from.unmaterialized()) {
+            String name = from.trackName(record.trackId);
+            if (name == null) continue;
+            MarkerWriter.Outcome outcome = writer.append(name, record.positionMs, formatter);
+            if (outcome != MarkerWriter.Outcome.DUPLICATE) {
+                if (index != null) index.add(name, record.positionMs, record.wallTime);
+                recent.add(name, record.positionMs);
+            }
+            recovered++;
+        }
+        return recovered;
+    }
+
+    /** Folds everything journaled so far into the text files. */
+    void materialize() throws IOException {
+        boolean hadPending = writer.hasPending();
+        long start = System.nanoTime();
+        writer.flush();
+        if (hadPending) metrics.write.recordNanos(System.nanoTime() - start);
+        if (index != null) index.flush();
+        if (journal != null) journal.markMaterialized(lastJournalSeq);
+    }
+
+    /** Materializes and closes all open marker files; the recorder stays usable. */
+    void closeFiles() throws IOException {
+        writer.closeAll();
+        if (index != null) index.flush();
+        if (journal != null) journal.markMaterialized(lastJournalSeq);
+    }
+
+    /**
+     * Sorts one existing marker file in place ({@link MarkerFileCompactor}), closing it first if
+     * it is open. Returns true if the file changed.
+     */
+    boolean compactFile(String name, long toleranceMs) throws IOException {
+        writer.close(name);
+        boolean changed = MarkerFileCompactor.compact(writer.getStore(), name, toleranceMs);
+        if (changed) recent.invalidate(name);
+        return changed;
+    }
+
+    /**
+     * The newest markers and the marker count for {@code name}. Served from memory once loaded;
+     * the first call for a track reads the index, or the track's file if there is no index.
+     */
+    RecentMarkers.Snapshot recent(String name) throws IOException {
+        RecentMarkers.Snapshot snapshot = recent.snapshot(name, formatter);
+        if (snapshot != null) return snapshot;
+
+        long start = System.nanoTime();
+        recent.begin(name);
+        try {
+            if (index != null) {
+                MarkerIndex.Track track = index.get(name);
+                int count = track == null ? 0 : track.count();
+                for (int i = 0; i < count; i++) recent.add(name, track.position(i));
+            } else {
+                loadFromFile(name);
+            }
+        } catch (IOException e) {
+            recent.invalidate(name);
+            throw e;
+        }
+        metrics.recentLoad.recordNanos(System.nanoTime() - start);
+        return recent.snapshot(name, formatter);
+    }
+
+    private void loadFromFile(String name) throws IOException {
+        // Buffered lines for this track are not in the file yet
+        writer.close(name);
+        byte[] data;
+        try {
+            data = MarkerStore.readAll(writer.getStore(), name);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        String[] lines = new String(data, StandardCharsets.UTF_8).split("\n");
+        // The first line is the track name
+        for (int i = 1; i < lines.length; i++) {
+            long position = TimeFormatter.parse(lines[i]);
+            if (position >= 0) recent.add(name, position);
+        }
+    }
+
+    TrackResolver getResolver() {
+        return resolver;
+    }
+
+    /** The marker index, or null if running without one. */
+    MarkerIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closeFiles();
+        } finally {
+            try {
+                if (index != null) index.close();
+            } finally {
+                try {
+                    if (journal != null) journal.close();
+                } finally {
+                    if (holdJournal != null) holdJournal.close();
+                }
+            }
+        }
+    }
+}
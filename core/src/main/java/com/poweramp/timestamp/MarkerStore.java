@@ -0,0 +1,59 @@
+package com.poweramp.timestamp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Where the per-track marker files live, addressed by sanitized track name.
+ *
+ * {@link FileMarkerStore} is a plain directory; {@link DocumentMarkerStore} works through a
+ * document provider for devices without all-files access. {@link MarkerWriter} keeps handles
+ * open, so whatever a backend pays to open a file is paid once per track rather than per tap.
+ */
+interface MarkerStore {
+
+    /** An open marker file. Positional I/O only, like {@link java.nio.channels.FileChannel}. */
+    interface Handle extends Closeable {
+        long size() throws IOException;
+
+        int read(ByteBuffer dst, long position) throws IOException;
+
+        int write(ByteBuffer src, long position) throws IOException;
+
+        /** Makes everything written so far durable. */
+        void force() throws IOException;
+    }
+
+    /** Opens {@code name}'s file for reading and writing, creating it empty if missing. */
+    Handle open(String name) throws IOException;
+
+    /** Streams {@code name}'s file; it must exist. */
+    InputStream read(String name) throws IOException;
+
+    /** Names of all marker files, in no particular order. */
+    List<String> names() throws IOException;
+
+    /** Wall-clock millis of the last change to {@code name}'s file, or 0 if unknown. */
+    long lastModified(String name) throws IOException;
+
+    /** Replaces {@code name}'s file with {@code content}, atomically where the backend can. */
+    void replace(String name, byte[] content) throws IOException;
+
+    /** Human-readable location, for messages. */
+    String describe();
+
+    /** Reads {@code name}'s whole file. */
+    static byte[] readAll(MarkerStore store, String name) throws IOException {
+        try (InputStream in = store.read(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+}
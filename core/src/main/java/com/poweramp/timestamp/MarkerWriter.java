@@ -0,0 +1,435 @@
+package com.poweramp.timestamp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Appends marker lines to per-track files in a {@link MarkerStore}.
+ *
+ * Keeps up to {@code maxOpen} handles open in LRU order so repeated tags on the same
+ * track skip the open/close cycle. {@link #append} only buffers; the owner decides when to
+ * {@link #flush()} (to coalesce lines that arrive close together) and when to
+ * {@link #closeAll()} (on idle or shutdown). Text is always written as UTF-8, and a file whose
+ * last line was cut short by a crash gets a line break before new lines are appended.
+ *
+ * In sorted mode ({@code sortToleranceMs >= 0}) each open file also keeps the positions and
+ * byte offsets of its marker lines. A new marker within the tolerance of an existing or buffered
+ * one is rejected as a duplicate; the rest are merged in on flush. Markers that all sort after
+ * the last one, as in normal playback, are simply appended; otherwise the merged file is written
+ * through {@link MarkerStore#replace}, so a crash leaves either the old or the new file rather
+ * than a half-rewritten one. The first time a file is opened in a session it is sorted by
+ * {@link MarkerFileCompactor} if needed; after that the writer keeps it sorted itself.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class MarkerWriter implements Closeable {
+
+    enum FsyncPolicy {
+        /** Leave durability to the kernel. */
+        NEVER,
+        /** fsync after every flush. */
+        ON_FLUSH,
+        /** fsync once when a file is closed or evicted. */
+        ON_CLOSE;
+
+        /** The policy called {@code name}, or {@link #ON_CLOSE} for null or anything unknown. */
+        static FsyncPolicy parse(String name) {
+            if (name != null) {
+                for (FsyncPolicy policy : values()) {
+                    if (policy.name().equals(name)) return policy;
+                }
+            }
+            return ON_CLOSE;
+        }
+    }
+
+    enum Outcome {
+        APPENDED,
+        CREATED,
+        /** Sorted mode only: an equal marker (within the tolerance) is already in the file. */
+        DUPLICATE
+    }
+
+    private static final int INITIAL_BUFFER = 256;
+
+    private static final class OpenFile {
+        final String name;
+        /** Replaced when a merge swaps in a new file. */
+        MarkerStore.Handle handle;
+        ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+        /** Bytes on disk; all writes are positional, so this is the append offset. */
+        long size;
+        /** Created by this open and nothing appended to it yet. */
+        boolean created;
+
+        // Sorted mode only: markers on disk, ascending, and markers waiting for the next merge
+        long[] positions;
+        long[] starts;
+        int count;
+        long[] pendingPositions;
+        byte[][] pendingLines;
+        int pendingCount;
+
+        OpenFile(String name, MarkerStore.Handle handle) {
+            this.name = name;
+            this.handle = handle;
+        }
+    }
+
+    private final MarkerStore store;
+    private final int maxOpen;
+    private final FsyncPolicy fsyncPolicy;
+    private final long sortToleranceMs;
+    private final LinkedHashMap<String, OpenFile> open = new LinkedHashMap<>(16, 0.75f, true);
+    // Sorted mode: files checked by the compactor this session, so reopening them skips it
+    private final HashSet<String> compacted = new HashSet<>();
+    // Sorted mode: a formatted line before it is copied into the pending queue
+    private final byte[] scratch = new byte[TimeFormatter.MAX_LENGTH + 1];
+
+    MarkerWriter(MarkerStore store, int maxOpen, FsyncPolicy fsyncPolicy) {
+        this(store, maxOpen, fsyncPolicy, -1);
+    }
+
+    /** {@code sortToleranceMs} of 0 or more keeps files sorted; negative appends in tap order. */
+    MarkerWriter(MarkerStore store, int maxOpen, FsyncPolicy fsyncPolicy, long sortToleranceMs) {
+        this.store = store;
+        this.maxOpen = maxOpen;
+        this.fsyncPolicy = fsyncPolicy;
+        this.sortToleranceMs = sortToleranceMs;
+    }
+
+    MarkerStore getStore() {
+        return store;
+    }
+
+    boolean isSorted() {
+        return sortToleranceMs >= 0;
+    }
+
+    /**
+     * Buffers {@code line} for {@code name}'s file, creating it with {@code name} as its first
+     * line if it is empty or missing.
+     */
+    Outcome append(String name, String line) throws IOException {
+        OpenFile file = file(name);
+        if (isSorted()) {
+            return insert(file, TimeFormatter.parse(line), (line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        put(file, line);
+        return appended(file);
+    }
+
+    /**
+     * Buffers the marker at {@code positionMs}, formatted by {@code formatter} straight into the
+     * file's buffer. Appending in tap order allocates nothing once the buffer has grown.
+     */
+    Outcome append(String name, long positionMs, TimeFormatter formatter) throws IOException {
+        OpenFile file = file(name);
+        if (isSorted()) {
+            int length = formatter.format(positionMs, scratch, 0);
+            scratch[length++] = '\n';
+            return insert(file, formatter.readBack(positionMs), Arrays.copyOf(scratch, length));
+        }
+        ByteBuffer buf = reserve(file, TimeFormatter.MAX_LENGTH + 1);
+        int length = formatter.format(positionMs, buf.array(), buf.arrayOffset() + buf.position());
+        buf.position(buf.position() + length);
+        buf.put((byte) '\n');
+        return appended(file);
+    }
+
+    boolean hasPending() {
+        for (OpenFile file : open.values()) {
+            if (file.pending.position() > 0 || file.pendingCount > 0) return true;
+        }
+        return false;
+    }
+
+    /** Writes all buffered lines. */
+    void flush() throws IOException {
+        IOException failure = null;
+        for (OpenFile file : open.values()) {
+            try {
+                flush(file);
+                merge(file);
+                if (fsyncPolicy == FsyncPolicy.ON_FLUSH) file.handle.force();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /** Flushes and closes every open file. The writer stays usable afterwards. */
+    void closeAll() throws IOException {
+        IOException failure = null;
+        Iterator<OpenFile> it = open.values().iterator();
+        while (it.hasNext()) {
+            OpenFile file = it.next();
+            it.remove();
+            try {
+                close(file);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /** Flushes and closes {@code name}'s file if it is open. */
+    void close(String name) throws IOException {
+        OpenFile file = open.remove(name);
+        if (file != null) close(file);
+    }
+
+    int openCount() {
+        return open.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll();
+    }
+
+    /** {@code name}'s open file, opening (and in sorted mode checking) it first if needed. */
+    private OpenFile file(String name) throws IOException {
+        OpenFile file = open.get(name);
+        if (file == null) {
+            evictIfFull();
+            MarkerStore.Handle handle = store.open(name);
+            if (isSorted() && !compacted.contains(name)) {
+                if (handle.size() > 0) {
+                    handle.close();
+                    MarkerFileCompactor.compact(store, name, sortToleranceMs);
+                    handle = store.open(name);
+                }
+                compacted.add(name);
+            }
+            file = new OpenFile(name, handle);
+            open.put(name, file);
+            long size = handle.size();
+            file.size = size;
+            if (size == 0) {
+                put(file, name);
+                file.created = true;
+            } else if (!endsWithNewline(handle, size)) {
+                // A previous append was cut short; start a fresh line instead of gluing onto it
+                file.pending.put((byte) '\n');
+            }
+            if (isSorted()) {
+                // Header and any newline repair go out now so the merge only ever sees whole lines
+                flush(file);
+                scan(file);
+            }
+        }
+        return file;
+    }
+
+    private static Outcome appended(OpenFile file) {
+        if (!file.created) return Outcome.APPENDED;
+        file.created = false;
+        return Outcome.CREATED;
+    }
+
+    private void evictIfFull() throws IOException {
+        if (open.size() < maxOpen) return;
+        Iterator<Map.Entry<String, OpenFile>> it = open.entrySet().iterator();
+        OpenFile eldest = it.next().getValue();
+        it.remove();
+        close(eldest);
+    }
+
+    private void close(OpenFile file) throws IOException {
+        try {
+            flush(file);
+            merge(file);
+            if (fsyncPolicy != FsyncPolicy.NEVER) file.handle.force();
+        } finally {
+            file.handle.close();
+        }
+    }
+
+    /** Loads the positions and line offsets of the (already sorted) file's marker lines. */
+    private static void scan(OpenFile file) throws IOException {
+        long size = file.handle.size();
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining() && file.handle.read(data, data.position()) >= 0) {
+            // keep reading
+        }
+        byte[] bytes = data.array();
+        file.positions = new long[16];
+        file.starts = new long[16];
+        file.count = 0;
+        file.size = size;
+        file.pendingPositions = new long[4];
+        file.pendingLines = new byte[4][];
+        file.pendingCount = 0;
+
+        int lineStart = 0;
+        boolean header = true;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            if (!header) {
+                long position = TimeFormatter.parse(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                if (position >= 0) addMarker(file, position, lineStart);
+            }
+            header = false;
+            lineStart = i + 1;
+        }
+    }
+
+    private static void addMarker(OpenFile file, long position, long start) {
+        if (file.count == file.positions.length) {
+            file.positions = Arrays.copyOf(file.positions, file.count * 2);
+            file.starts = Arrays.copyOf(file.starts, file.count * 2);
+        }
+        file.positions[file.count] = position;
+        file.starts[file.count] = start;
+        file.count++;
+    }
+
+    /** Queues {@code line}, ending in a newline, for the next merge unless it is a duplicate. */
+    private Outcome insert(OpenFile file, long position, byte[] line) {
+        if (isNear(file.positions, file.count, position) || isNear(file.pendingPositions, file.pendingCount, position)) {
+            return Outcome.DUPLICATE;
+        }
+        int at = upperBound(file.pendingPositions, file.pendingCount, position);
+        if (file.pendingCount == file.pendingPositions.length) {
+            file.pendingPositions = Arrays.copyOf(file.pendingPositions, file.pendingCount * 2);
+            file.pendingLines = Arrays.copyOf(file.pendingLines, file.pendingCount * 2);
+        }
+        System.arraycopy(file.pendingPositions, at, file.pendingPositions, at + 1, file.pendingCount - at);
+        System.arraycopy(file.pendingLines, at, file.pendingLines, at + 1, file.pendingCount - at);
+        file.pendingPositions[at] = position;
+        file.pendingLines[at] = line;
+        file.pendingCount++;
+        return appended(file);
+    }
+
+    private boolean isNear(long[] sorted, int count, long position) {
+        int at = upperBound(sorted, count, position);
+        return (at > 0 && position - sorted[at - 1] <= sortToleranceMs)
+                || (at < count && sorted[at] - position <= sortToleranceMs);
+    }
+
+    /** First index whose value is greater than {@code value}. */
+    private static int upperBound(long[] sorted, int count, long value) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Merges queued markers into a sorted file. When they all sort after the existing markers
+     * they are appended in place; otherwise everything from the first insertion point on is
+     * rebuilt and the whole file is swapped for the merged one.
+     */
+    private void merge(OpenFile file) throws IOException {
+        if (file.pendingCount == 0) return;
+        int k = upperBound(file.positions, file.count, file.pendingPositions[0]);
+        long offset = k < file.count ? file.starts[k] : file.size;
+        boolean append = offset == file.size;
+
+        // Rewrites carry the unchanged head along, since the file is replaced as a whole
+        long readFrom = append ? offset : 0;
+        int head = (int) (offset - readFrom);
+        ByteBuffer old = ByteBuffer.allocate((int) (file.size - readFrom));
+        while (old.hasRemaining() && file.handle.read(old, readFrom + old.position()) >= 0) {
+            // keep reading
+        }
+        int added = 0;
+        for (int j = 0; j < file.pendingCount; j++) added += file.pendingLines[j].length;
+        ByteBuffer out = ByteBuffer.allocate(old.capacity() + added);
+        out.put(old.array(), 0, head);
+
+        int total = file.count + file.pendingCount;
+        long[] positions = Arrays.copyOf(file.positions, Math.max(total, 16));
+        long[] starts = Arrays.copyOf(file.starts, positions.length);
+        byte[] bytes = old.array();
+        int i = k;
+        int j = 0;
+        int n = k;
+        while (i < file.count || j < file.pendingCount) {
+            starts[n] = readFrom + out.position();
+            if (j >= file.pendingCount || (i < file.count && file.positions[i] <= file.pendingPositions[j])) {
+                // An existing line, plus any non-marker lines that follow it
+                long end = i + 1 < file.count ? file.starts[i + 1] : file.size;
+                out.put(bytes, (int) (file.starts[i] - readFrom), (int) (end - file.starts[i]));
+                positions[n] = file.positions[i++];
+            } else {
+                out.put(file.pendingLines[j]);
+                positions[n] = file.pendingPositions[j++];
+            }
+            n++;
+        }
+        out.flip();
+        long size;
+        if (append) {
+            size = offset;
+            while (out.hasRemaining()) {
+                size += file.handle.write(out, size);
+            }
+        } else {
+            size = out.remaining();
+            file.handle.close();
+            try {
+                store.replace(file.name, out.array());
+            } finally {
+                file.handle = store.open(file.name);
+            }
+        }
+        file.positions = positions;
+        file.starts = starts;
+        file.count = total;
+        file.size = size;
+        Arrays.fill(file.pendingLines, 0, file.pendingCount, null);
+        file.pendingCount = 0;
+    }
+
+    private static boolean endsWithNewline(MarkerStore.Handle handle, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        handle.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+
+    private static void put(OpenFile file, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        reserve(file, bytes.length + 1).put(bytes).put((byte) '\n');
+    }
+
+    /** The file's buffer, grown if needed to take {@code length} more bytes. */
+    private static ByteBuffer reserve(OpenFile file, int length) {
+        ByteBuffer buf = file.pending;
+        if (buf.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + length));
+            buf.flip();
+            grown.put(buf);
+            file.pending = buf = grown;
+        }
+        return buf;
+    }
+
+    private static void flush(OpenFile file) throws IOException {
+        ByteBuffer buf = file.pending;
+        if (buf.position() == 0) return;
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                file.size += file.handle.write(buf, file.size);
+            }
+        } finally {
+            buf.compact();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of everything known about PowerAmp playback, shared process-wide.
+ *
+ * Receivers and the notification listener publish through {@link #update(Updater)}, which
+ * swaps the whole snapshot atomically and bumps {@link #generation}. Readers call
+ * {@link #current()} once and use that snapshot, so the track identity and the position they
+ * see always belong to the same publish.
+ */
+final class PlaybackState {
+
+    interface Updater {
+        void update(Builder builder);
+    }
+
+    interface Listener {
+        /** Called on the publishing thread after every successful publish. */
+        void onPlaybackStateChanged(PlaybackState state);
+    }
+
+    static final PlaybackState EMPTY = new Builder().build(0);
+
+    private static final AtomicReference<PlaybackState> CURRENT = new AtomicReference<>(EMPTY);
+    private static final CopyOnWriteArrayList<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    final long generation;
+    /** Generation of the last publish that changed any track-identifying field. */
+    final long trackGeneration;
+
+    final String notificationTitle;
+    final String notificationText;
+    final String notificationSubText;
+    final long lastNotificationTime;
+    /** True while the notification listener is bound, i.e. notification fields can still change. */
+    final boolean notificationListenerConnected;
+
+    final String broadcastTrack;
+    final String broadcastPath;
+    final long lastBroadcastTime;
+
+    /** Last reported position in ms, or -1 if none has been seen yet. */
+    final long positionMs;
+    /** Wall-clock time at which {@link #positionMs} was received. */
+    final long positionUpdateTime;
+
+    private PlaybackState(Builder b, long generation) {
+        this.generation = generation;
+        this.trackGeneration = b.trackChanged ? generation : b.trackGeneration;
+        this.notificationTitle = b.notificationTitle;
+        this.notificationText = b.notificationText;
+        this.notificationSubText = b.notificationSubText;
+        this.lastNotificationTime = b.lastNotificationTime;
+        this.notificationListenerConnected = b.notificationListenerConnected;
+        this.broadcastTrack = b.broadcastTrack;
+        this.broadcastPath = b.broadcastPath;
+        this.lastBroadcastTime = b.lastBroadcastTime;
+        this.positionMs = b.positionMs;
+        this.positionUpdateTime = b.positionUpdateTime;
+    }
+
+    /** True if these are exactly the notification fields already published. */
+    boolean hasNotification(String title, String text, String subText) {
+        return notificationTitle.equals(title) && notificationText.equals(text)
+                && notificationSubText.equals(subText);
+    }
+
+    static PlaybackState current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Applies {@code updater} to a copy of the current snapshot and publishes the result. Retries
+     * if another thread published in between, so the updater may run more than once and must not
+     * have side effects.
+     */
+    static PlaybackState update(Updater updater) {
+        PlaybackState prev;
+        PlaybackState next;
+        do {
+            prev = CURRENT.get();
+            Builder builder = new Builder(prev);
+            updater.update(builder);
+            next = builder.build(prev.generation + 1);
+        } while (!CURRENT.compareAndSet(prev, next));
+
+        for (Listener listener : LISTENERS) {
+            listener.onPlaybackStateChanged(next);
+        }
+        return next;
+    }
+
+    static void addListener(Listener listener) {
+        LISTENERS.addIfAbsent(listener);
+    }
+
+    static void removeListener(Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    static final class Builder {
+        String notificationTitle = "";
+        String notificationText = "";
+        String notificationSubText = "";
+        long lastNotificationTime;
+        boolean notificationListenerConnected;
+        String broadcastTrack = "";
+        String broadcastPath = "";
+        long lastBroadcastTime;
+        long positionMs = -1;
+        long positionUpdateTime;
+        long trackGeneration;
+        boolean trackChanged;
+
+        Builder() {
+        }
+
+        Builder(PlaybackState s) {
+            trackGeneration = s.trackGeneration;
+            notificationTitle = s.notificationTitle;
+            notificationText = s.notificationText;
+            notificationSubText = s.notificationSubText;
+            lastNotificationTime = s.lastNotificationTime;
+            notificationListenerConnected = s.notificationListenerConnected;
+            broadcastTrack = s.broadcastTrack;
+            broadcastPath = s.broadcastPath;
+            lastBroadcastTime = s.lastBroadcastTime;
+            positionMs = s.positionMs;
+            positionUpdateTime = s.positionUpdateTime;
+        }
+
+        Builder notification(String title, String text, String subText, long time) {
+            trackChanged |= !title.equals(notificationTitle) || !text.equals(notificationText)
+                    || !subText.equals(notificationSubText);
+            notificationTitle = title;
+            notificationText = text;
+            notificationSubText = subText;
+            lastNotificationTime = time;
+            return this;
+        }
+
+        Builder notificationListenerConnected(boolean connected) {
+            notificationListenerConnected = connected;
+            return this;
+        }
+
+        Builder broadcastTrack(String track) {
+            trackChanged |= !track.equals(broadcastTrack);
+            broadcastTrack = track;
+            return this;
+        }
+
+        Builder broadcastPath(String path) {
+            trackChanged |= !path.equals(broadcastPath);
+            broadcastPath = path;
+            return this;
+        }
+
+        Builder lastBroadcastTime(long time) {
+            lastBroadcastTime = time;
+            return this;
+        }
+
+        Builder position(long ms, long updateTime) {
+            positionMs = ms;
+            positionUpdateTime = updateTime;
+            return this;
+        }
+
+        PlaybackState build(long generation) {
+            return new PlaybackState(this, generation);
+        }
+    }
+}
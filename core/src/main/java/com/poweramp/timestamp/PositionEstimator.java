@@ -0,0 +1,156 @@
+package com.poweramp.timestamp;
+
+/**
+ * Extrapolates the current playback position from the last reported one.
+ *
+ * PowerAmp reports {@code pos} in whole seconds, so a report only says the true position lies
+ * in {@code [pos, pos + resolution)}. As long as the extrapolated position stays inside that
+ * window it is kept, which lets the estimate converge below the reporting resolution; a report
+ * outside it (seek, stall, clock skew) re-anchors to the reported value. The difference between
+ * each report and the estimate is recorded as drift, both in the running statistics and as a
+ * {@link TraceRecorder.Event#SYNC_DRIFT} trace event.
+ *
+ * Playback advances at {@link #setSpeed speed} times real time (PowerAmp's tempo control), and
+ * estimates for a time before the anchor are extrapolated backwards, since a tap can predate the
+ * reading that answers it.
+ *
+ * A reading alone does not say whether the position is moving. Until a play state has been
+ * {@link #setPlaying reported} there is no estimate, and readings re-anchor without drift.
+ *
+ * All times are monotonic milliseconds supplied by the caller, in the
+ * {@code SystemClock.uptimeMillis()} base that input events use. Thread-safe.
+ */
+final class PositionEstimator {
+
+    /** Resolution of PowerAmp's {@code pos} extra. */
+    static final long POWERAMP_RESOLUTION_MS = 1000;
+
+    private final TraceRecorder trace = TraceRecorder.get();
+
+    private long anchorPositionMs = -1;
+    private long anchorTime;
+    private boolean playing;
+    private boolean playStateKnown;
+    private float speed = 1f;
+    private long lastSyncTime;
+
+    private long driftSamples;
+    private long driftSumMs;
+    private long driftAbsSumMs;
+    private long driftMaxAbsMs;
+    private long reanchors;
+
+    synchronized boolean hasAnchor() {
+        return anchorPositionMs >= 0;
+    }
+
+    synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    /** Monotonic time of the last position report, or 0 if none. */
+    synchronized long getLastSyncTime() {
+        return lastSyncTime;
+    }
+
+    synchronized float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Estimated position at {@code now}, or -1 if no position or no play state has been reported
+     * yet.
+     */
+    synchronized long estimate(long now) {
+        if (anchorPositionMs < 0 || !playStateKnown) return -1;
+        return extrapolate(now);
+    }
+
+    /** Feeds a position report with the given resolution, received at {@code now}. */
+    synchronized void onSync(long positionMs, long resolutionMs, long now) {
+        lastSyncTime = now;
+        if (anchorPositionMs < 0 || !playStateKnown) {
+            // Nothing to predict against: without a play state the anchor may be frozen or moving
+            anchor(positionMs, now);
+            return;
+        }
+
+        long predicted = extrapolate(now);
+        long drift;
+        if (predicted >= positionMs && predicted < positionMs + resolutionMs) {
+            drift = 0;
+            anchor(predicted, now);
+        } else {
+            drift = positionMs - predicted;
+            reanchors++;
+            anchor(positionMs, now);
+        }
+
+        driftSamples++;
+        driftSumMs += drift;
+        long abs = Math.abs(drift);
+        driftAbsSumMs += abs;
+        if (abs > driftMaxAbsMs) driftMaxAbsMs = abs;
+        trace.record(TraceRecorder.Event.SYNC_DRIFT, drift, resolutionMs);
+    }
+
+    /** A new track starts at {@code positionMs}; drift against the old track is meaningless. */
+    synchronized void onTrackChanged(long positionMs, long now) {
+        lastSyncTime = now;
+        anchor(positionMs, now);
+    }
+
+    synchronized void setPlaying(boolean nowPlaying, long now) {
+        if (playStateKnown && nowPlaying == playing) return;
+        // Freeze or resume the clock at the current estimate; a first report keeps the anchor
+        if (playStateKnown && anchorPositionMs >= 0) anchor(extrapolate(now), now);
+        playing = nowPlaying;
+        playStateKnown = true;
+    }
+
+    /** Playback rate relative to real time, e.g. 1.25 for 125% tempo. */
+    synchronized void setSpeed(float newSpeed, long now) {
+        if (newSpeed <= 0 || newSpeed == speed) return;
+        if (anchorPositionMs >= 0) anchor(extrapolate(now), now);
+        speed = newSpeed;
+    }
+
+    private long extrapolate(long now) {
+        if (!playing) return anchorPositionMs;
+        return Math.max(0, anchorPositionMs + (long) ((now - anchorTime) * speed));
+    }
+
+    private void anchor(long positionMs, long now) {
+        anchorPositionMs = positionMs;
+        anchorTime = now;
+    }
+
+    synchronized long getDriftSamples() {
+        return driftSamples;
+    }
+
+    synchronized long getMeanDriftMs() {
+        return driftSamples == 0 ? 0 : driftSumMs / driftSamples;
+    }
+
+    synchronized long getMeanAbsDriftMs() {
+        return driftSamples == 0 ? 0 : driftAbsSumMs / driftSamples;
+    }
+
+    synchronized long getMaxAbsDriftMs() {
+        return driftMaxAbsMs;
+    }
+
+    synchronized long getReanchorCount() {
+        return reanchors;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "drift samples=" + driftSamples
+                + " mean=" + getMeanDriftMs() + "ms"
+                + " meanAbs=" + getMeanAbsDriftMs() + "ms"
+                + " maxAbs=" + driftMaxAbsMs + "ms"
+                + " reanchors=" + reanchors;
+    }
+}
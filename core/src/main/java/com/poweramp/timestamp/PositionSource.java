@@ -0,0 +1,30 @@
+package com.poweramp.timestamp;
+
+/**
+ * Somewhere the playback position can be read from. Implementations deliver readings to the
+ * {@link Listener} on the capture worker; {@link PositionSources} decides which one is asked.
+ */
+interface PositionSource {
+
+    interface Listener {
+        /**
+         * {@code positionMs} is the position at {@code uptime} (the
+         * {@link PositionEstimator} time base), already extrapolated by the source if needed;
+         * while playing it advances {@code speed} ms per ms. {@code reply} is true if this
+         * answers {@link #requestPosition}, false if the source pushed it unasked.
+         */
+        void onPosition(PositionSource source, long positionMs, boolean playing, float speed, long uptime,
+                boolean reply);
+    }
+
+    String getName();
+
+    /** Granularity of the reported positions. */
+    long getResolutionMs();
+
+    /** False while the source cannot answer, e.g. before it has been connected. */
+    boolean isAvailable();
+
+    /** Asks for a fresh reading. The answer may arrive synchronously, later, or never. */
+    void requestPosition();
+}
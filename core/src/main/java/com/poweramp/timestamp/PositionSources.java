@@ -0,0 +1,131 @@
+package com.poweramp.timestamp;
+
+/**
+ * Picks the {@link PositionSource} to ask, by measured latency and freshness.
+ *
+ * For each source the time from {@link #onRequest} to the reading that answers it is kept as a
+ * moving average; readings the source pushed unasked count for freshness only, since they say
+ * nothing about how fast it answers. A request still unanswered counts with its age, so a
+ * source that stops answering loses out on its own. Sources that reported within
+ * {@link #FRESH_MS} are preferred; among them (or among all available ones if none is fresh)
+ * the lowest expected error wins, i.e. latency plus half the resolution. Ties go to the source
+ * registered first.
+ *
+ * All times are uptime millis. Thread-safe; the worker feeds it, the metrics panel reads it.
+ */
+final class PositionSources {
+
+    static final long FRESH_MS = 5000;
+
+    private static final class Entry {
+        final PositionSource source;
+        long requestedAt = -1;
+        long latencyMs = -1;
+        long lastReport = -1;
+        long requests;
+        long reports;
+
+        Entry(PositionSource source) {
+            this.source = source;
+        }
+
+        long effectiveLatency(long now) {
+            long latency = Math.max(latencyMs, 0);
+            if (requestedAt >= 0) latency = Math.max(latency, now - requestedAt);
+            return latency;
+        }
+    }
+
+    private final Entry[] entries;
+    private PositionSource selected;
+
+    /** {@code sources} in preference order. */
+    PositionSources(PositionSource... sources) {
+        if (sources.length == 0) throw new IllegalArgumentException("No position sources");
+        entries = new Entry[sources.length];
+        for (int i = 0; i < sources.length; i++) entries[i] = new Entry(sources[i]);
+        selected = sources[0];
+    }
+
+    /** Re-evaluates and returns the source to ask at {@code now}. */
+    synchronized PositionSource select(long now) {
+        Entry best = null;
+        boolean bestFresh = false;
+        long bestScore = 0;
+        for (Entry e : entries) {
+            if (!e.source.isAvailable()) continue;
+            boolean fresh = e.lastReport >= 0 && now - e.lastReport <= FRESH_MS;
+            long score = e.effectiveLatency(now) + e.source.getResolutionMs() / 2;
+            if (best == null || (fresh && !bestFresh) || (fresh == bestFresh && score < bestScore)) {
+                best = e;
+                bestFresh = fresh;
+                bestScore = score;
+            }
+        }
+        // Nothing claims to be available; keep asking the last choice rather than nobody
+        if (best != null) selected = best.source;
+        return selected;
+    }
+
+    /** Position of {@code source} in preference order. */
+    synchronized int indexOf(PositionSource source) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].source == source) return i;
+        }
+        return -1;
+    }
+
+    /** Source chosen by the last {@link #select}. */
+    synchronized PositionSource selected() {
+        return selected;
+    }
+
+    synchronized void onRequest(PositionSource source, long now) {
+        Entry e = entry(source);
+        e.requests++;
+        if (e.requestedAt < 0) e.requestedAt = now;
+    }
+
+    /**
+     * Records a reading; {@code reply} if it answers a {@link PositionSource#requestPosition}
+     * rather than being pushed. Returns true if it came from the selected source.
+     */
+    synchronized boolean onReport(PositionSource source, long now, boolean reply) {
+        Entry e = entry(source);
+        e.reports++;
+        e.lastReport = now;
+        if (reply && e.requestedAt >= 0) {
+            long latency = now - e.requestedAt;
+            e.latencyMs = e.latencyMs < 0 ? latency : (e.latencyMs * 3 + latency) / 4;
+            e.requestedAt = -1;
+        }
+        return source == selected;
+    }
+
+    /**
+     * How long {@code source}'s readings are estimated to spend in transit: half the measured
+     * request-to-reading time, or 0 before anything has been measured.
+     */
+    synchronized long transitMs(PositionSource source) {
+        Entry e = entry(source);
+        return e.latencyMs < 0 ? 0 : e.latencyMs / 2;
+    }
+
+    /** One line per source, for the metrics report. */
+    synchronized void appendTo(StringBuilder sb, long now) {
+        for (Entry e : entries) {
+            sb.append('\n').append(e.source == selected ? "* " : "  ").append(e.source.getName())
+                    .append(e.source.isAvailable() ? "" : " (unavailable)")
+                    .append(": latency=").append(e.latencyMs).append("ms age=")
+                    .append(e.lastReport < 0 ? -1 : now - e.lastReport).append("ms req=")
+                    .append(e.requests).append(" rep=").append(e.reports);
+        }
+    }
+
+    private Entry entry(PositionSource source) {
+        for (Entry e : entries) {
+            if (e.source == source) return e;
+        }
+        throw new IllegalArgumentException("Unknown position source " + source.getName());
+    }
+}
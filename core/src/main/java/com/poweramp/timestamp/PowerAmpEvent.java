@@ -0,0 +1,108 @@
+package com.poweramp.timestamp;
+
+/**
+ * One PowerAmp broadcast, parsed and normalized: positions are always milliseconds, missing
+ * strings are empty, and times are taken once at receipt.
+ */
+final class PowerAmpEvent {
+
+    static final String POWERAMP_PACKAGE = "com.maxmpz.audioplayer";
+    static final String ACTION_STATUS_CHANGED = POWERAMP_PACKAGE + ".STATUS_CHANGED";
+    static final String ACTION_TRACK_CHANGED = POWERAMP_PACKAGE + ".TRACK_CHANGED";
+    static final String ACTION_TRACK_POS_SYNC = POWERAMP_PACKAGE + ".TPOS_SYNC";
+    static final String ACTION_PLAYING_MODE_CHANGED = POWERAMP_PACKAGE + ".PLAYING_MODE_CHANGED";
+
+    /** Read access to a broadcast's extras, e.g. a {@code Bundle}. */
+    interface Extras {
+        /**
+         * The extra named {@code key}, or null. A nested {@code track} bundle is returned as its
+         * title string.
+         */
+        Object get(String key);
+    }
+
+    enum Kind {
+        STATUS,
+        TRACK,
+        POSITION_SYNC,
+        PLAYING_MODE;
+
+        /** Returns null for actions that are not PowerAmp playback events. */
+        static Kind of(String action) {
+            if (ACTION_STATUS_CHANGED.equals(action)) return STATUS;
+            if (ACTION_TRACK_CHANGED.equals(action)) return TRACK;
+            if (ACTION_TRACK_POS_SYNC.equals(action)) return POSITION_SYNC;
+            if (ACTION_PLAYING_MODE_CHANGED.equals(action)) return PLAYING_MODE;
+            return null;
+        }
+    }
+
+    final Kind kind;
+    /** Position in ms, or -1 if the broadcast carried none. */
+    final long positionMs;
+    final String track;
+    final String path;
+    final boolean hasPaused;
+    final boolean paused;
+    /** Uptime millis at receipt, the time base of {@link PositionEstimator}. */
+    final long uptime;
+    /** Wall-clock millis at receipt. */
+    final long wallTime;
+
+    PowerAmpEvent(Kind kind, long positionMs, String track, String path, boolean hasPaused,
+            boolean paused, long uptime, long wallTime) {
+        this.kind = kind;
+        this.positionMs = positionMs;
+        this.track = track == null ? "" : track;
+        this.path = path == null ? "" : path;
+        this.hasPaused = hasPaused;
+        this.paused = hasPaused && paused;
+        this.uptime = uptime;
+        this.wallTime = wallTime;
+    }
+
+    /**
+     * Parses a broadcast with {@code action} received at {@code uptime} / {@code wallTime};
+     * returns null for actions that are not PowerAmp playback events. {@code extras} may be null.
+     */
+    static PowerAmpEvent parse(String action, Extras extras, long uptime, long wallTime) {
+        Kind kind = Kind.of(action);
+        if (kind == null) return null;
+        if (extras == null) {
+            return new PowerAmpEvent(kind, -1, "", "", false, false, uptime, wallTime);
+        }
+        Object pos = extras.get("pos");
+        Object track = extras.get("track");
+        Object path = extras.get("path");
+        Object paused = extras.get("paused");
+        return new PowerAmpEvent(kind,
+                positionFromSeconds(pos instanceof Integer ? (Integer) pos : -1),
+                track instanceof String ? (String) track : "",
+                path instanceof String ? (String) path : "",
+                paused instanceof Boolean,
+                Boolean.TRUE.equals(paused),
+                uptime,
+                wallTime);
+    }
+
+    /** PowerAmp reports {@code pos} in whole seconds; negative means absent. */
+    static long positionFromSeconds(int seconds) {
+        return seconds < 0 ? -1 : seconds * 1000L;
+    }
+
+    /** True if both events carry the same payload, regardless of when they arrived. */
+    boolean samePayload(PowerAmpEvent other) {
+        return kind == other.kind
+                && positionMs == other.positionMs
+                && hasPaused == other.hasPaused
+                && paused == other.paused
+                && track.equals(other.track)
+                && path.equals(other.path);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " pos=" + positionMs + (hasPaused ? " paused=" + paused : "")
+                + (track.isEmpty() ? "" : " track=" + track);
+    }
+}
@@ -0,0 +1,114 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single entry point for PowerAmp broadcasts, whichever receiver they came in through.
+ *
+ * The same broadcast is usually delivered twice (manifest receiver and the service's dynamic
+ * receiver), so an event whose payload matches the previous one of its kind within
+ * {@link #DUPLICATE_WINDOW_MS} is dropped. {@code TPOS_SYNC} replies are exempt: only the
+ * dynamic receiver gets them, and each answers a request of ours, so a second one with the same
+ * position (two requests within a second, or paused playback) is a real reading. Surviving
+ * events are published to {@link PlaybackState} and then handed to the listeners on the calling
+ * thread.
+ */
+final class PowerAmpIngest {
+
+    interface Listener {
+        /** {@code state} is the snapshot this event produced. */
+        void onPowerAmpEvent(PowerAmpEvent event, PlaybackState state);
+    }
+
+    static final long DUPLICATE_WINDOW_MS = 500;
+
+    private static final PowerAmpIngest INSTANCE = new PowerAmpIngest();
+
+    static PowerAmpIngest get() {
+        return INSTANCE;
+    }
+
+    private final PowerAmpEvent[] lastByKind = new PowerAmpEvent[PowerAmpEvent.Kind.values().length];
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final CaptureMetrics metrics = CaptureMetrics.get();
+    private final TraceRecorder trace = TraceRecorder.get();
+
+    /** Returns false if {@code event} was a duplicate delivery and has been dropped. */
+    boolean offer(final PowerAmpEvent event) {
+        PlaybackState state;
+        // Serialize the two delivery threads so publishes stay in arrival order
+        synchronized (this) {
+            int slot = event.kind.ordinal();
+            PowerAmpEvent last = lastByKind[slot];
+            if (event.kind != PowerAmpEvent.Kind.POSITION_SYNC && last != null
+                    && event.uptime - last.uptime <= DUPLICATE_WINDOW_MS && event.samePayload(last)) {
+                metrics.duplicateBroadcasts.incrementAndGet();
+                trace.record(TraceRecorder.Event.BROADCAST_DUPLICATE, event.kind.ordinal(), event.positionMs);
+                return false;
+            }
+            lastByKind[slot] = event;
+            trace.record(TraceRecorder.Event.BROADCAST, event.kind.ordinal(), event.positionMs);
+            mark(event);
+
+            state = PlaybackState.update(new PlaybackState.Updater() {
+                @Override
+                public void update(PlaybackState.Builder b) {
+                    if (event.positionMs >= 0) b.position(event.positionMs, event.wallTime);
+                    if (!event.track.isEmpty()) b.broadcastTrack(event.track);
+                    if (!event.path.isEmpty()) b.broadcastPath(event.path);
+                    b.lastBroadcastTime(event.wallTime);
+                }
+            });
+        }
+
+        for (Listener listener : listeners) {
+            listener.onPowerAmpEvent(event, state);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes PowerAmp's media notification text to {@link PlaybackState}. PowerAmp reposts the
+     * same notification constantly during playback, so returns false, publishing nothing, while
+     * the text is unchanged.
+     */
+    boolean offerNotification(final String title, final String text, final String subText, final long wallTime) {
+        if (PlaybackState.current().hasNotification(title, text, subText)) {
+            metrics.notificationsSuppressed.incrementAndGet();
+            return false;
+        }
+        PlaybackState.update(new PlaybackState.Updater() {
+            @Override
+            public void update(PlaybackState.Builder b) {
+                b.notification(title, text, subText, wallTime);
+            }
+        });
+        metrics.notificationsPublished.incrementAndGet();
+        return true;
+    }
+
+    void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void mark(PowerAmpEvent event) {
+        switch (event.kind) {
+            case STATUS:
+                metrics.statusBroadcasts.mark(event.uptime);
+                break;
+            case TRACK:
+                metrics.trackBroadcasts.mark(event.uptime);
+                break;
+            case POSITION_SYNC:
+                metrics.posSyncBroadcasts.mark(event.uptime);
+                break;
+            case PLAYING_MODE:
+                metrics.playingModeBroadcasts.mark(event.uptime);
+                break;
+        }
+    }
+}
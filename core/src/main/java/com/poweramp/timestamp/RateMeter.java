@@ -0,0 +1,61 @@
+package com.poweramp.timestamp;
+
+/**
+ * Events per second over a sliding window of one-second slots, plus a running total.
+ * Fixed memory; calls are uncontended in practice (one writer, an occasional reader).
+ */
+final class RateMeter {
+
+    static final int WINDOW_SECONDS = 10;
+    // One extra slot for the second still being counted
+    private static final int SLOTS = WINDOW_SECONDS + 1;
+
+    private final String name;
+    private final long[] slotSecond = new long[SLOTS];
+    private final int[] slotCount = new int[SLOTS];
+    private long total;
+
+    RateMeter(String name) {
+        this.name = name;
+        for (int i = 0; i < SLOTS; i++) slotSecond[i] = -1;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** {@code now} in milliseconds of any monotonic clock. */
+    synchronized void mark(long now) {
+        long second = now / 1000;
+        int slot = (int) (second % SLOTS);
+        if (slotSecond[slot] != second) {
+            slotSecond[slot] = second;
+            slotCount[slot] = 0;
+        }
+        slotCount[slot]++;
+        total++;
+    }
+
+    /** Mean rate over the last {@link #WINDOW_SECONDS} whole seconds before {@code now}. */
+    synchronized double perSecond(long now) {
+        long second = now / 1000;
+        int events = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long age = second - slotSecond[i];
+            if (slotSecond[i] >= 0 && age >= 1 && age <= WINDOW_SECONDS) events += slotCount[i];
+        }
+        return events / (double) WINDOW_SECONDS;
+    }
+
+    synchronized long getTotal() {
+        return total;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            slotSecond[i] = -1;
+            slotCount[i] = 0;
+        }
+        total = 0;
+    }
+}
@@ -0,0 +1,45 @@
+package com.poweramp.timestamp;
+
+import java.util.Arrays;
+
+/**
+ * One reaction-time calibration run: {@link #TRIALS} taps, each timed from the moment a cue
+ * appeared. Taps faster than {@link #MIN_MS} are anticipations and slower than {@link #MAX_MS}
+ * are lapses; both are rejected and the trial is repeated. The result is the median, which a
+ * single distracted trial cannot move much.
+ *
+ * Times are uptime millis. Not thread-safe; use from the UI thread.
+ */
+final class ReactionCalibration {
+
+    static final int TRIALS = 5;
+    static final long MIN_MS = 100;
+    static final long MAX_MS = 1500;
+
+    private final long[] samples = new long[TRIALS];
+    private int count;
+
+    /** Records a trial; returns false if it was rejected and has to be repeated. */
+    boolean add(long cueTime, long tapTime) {
+        long reaction = tapTime - cueTime;
+        if (count == TRIALS || reaction < MIN_MS || reaction > MAX_MS) return false;
+        samples[count++] = reaction;
+        return true;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isComplete() {
+        return count == TRIALS;
+    }
+
+    /** Median reaction time of the trials so far, or -1 if there are none. */
+    long median() {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+}
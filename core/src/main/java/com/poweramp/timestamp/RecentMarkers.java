@@ -0,0 +1,100 @@
+package com.poweramp.timestamp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last few markers and the marker count of recently played tracks, kept in memory so the
+ * overlay can show them without touching the files.
+ *
+ * Holds at most {@code maxTracks} tracks, evicting the least recently used, and at most
+ * {@code keep} positions per track in a small ring. An entry is started with {@link #begin} and
+ * fed with {@link #add}; {@code add} for a track that is not cached does nothing, so captures on
+ * tracks nobody has looked at cost nothing until they are loaded.
+ *
+ * Not thread-safe; use from a single worker thread. {@link Snapshot}s may be handed to any thread.
+ */
+final class RecentMarkers {
+
+    /** Immutable view of one track's entry. */
+    static final class Snapshot {
+        final String track;
+        final int count;
+        /** Formatted timestamps, newest first. */
+        final String[] latest;
+
+        Snapshot(String track, int count, String[] latest) {
+            this.track = track;
+            this.count = count;
+            this.latest = latest;
+        }
+    }
+
+    private static final class TrackRing {
+        final long[] ring;
+        int next;
+        int size;
+        int count;
+
+        TrackRing(int keep) {
+            ring = new long[keep];
+        }
+
+        void add(long positionMs) {
+            ring[next] = positionMs;
+            next = (next + 1) % ring.length;
+            if (size < ring.length) size++;
+            count++;
+        }
+    }
+
+    private final int keep;
+    private final LinkedHashMap<String, TrackRing> tracks;
+
+    RecentMarkers(final int maxTracks, int keep) {
+        this.keep = keep;
+        tracks = new LinkedHashMap<String, TrackRing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TrackRing> eldest) {
+                return size() > maxTracks;
+            }
+        };
+    }
+
+    boolean contains(String name) {
+        return tracks.containsKey(name);
+    }
+
+    /** Starts an empty entry for {@code name}, replacing any cached one. */
+    void begin(String name) {
+        tracks.put(name, new TrackRing(keep));
+    }
+
+    /** Adds a marker to {@code name}'s entry if it is cached. */
+    void add(String name, long positionMs) {
+        TrackRing entry = tracks.get(name);
+        if (entry != null) entry.add(positionMs);
+    }
+
+    /** Drops {@code name}'s entry, e.g. after its file was rewritten. */
+    void invalidate(String name) {
+        tracks.remove(name);
+    }
+
+    /** {@code name}'s entry formatted with {@code formatter}, or null if it is not cached. */
+    Snapshot snapshot(String name, TimeFormatter formatter) {
+        TrackRing entry = tracks.get(name);
+        if (entry == null) return null;
+        String[] latest = new String[entry.size];
+        int at = entry.next;
+        for (int i = 0; i < latest.length; i++) {
+            at = (at + entry.ring.length - 1) % entry.ring.length;
+            latest[i] = formatter.format(entry.ring[at]);
+        }
+        return new Snapshot(name, entry.count, latest);
+    }
+
+    int size() {
+        return tracks.size();
+    }
+}
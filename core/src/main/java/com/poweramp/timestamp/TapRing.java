@@ -0,0 +1,65 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring of tap event times.
+ *
+ * The UI thread offers each tap's event time, with a small tag saying what produced it, and
+ * gets back its sequence number; the capture worker drains taps strictly in sequence order.
+ * Nothing blocks: a full ring rejects the tap.
+ */
+final class TapRing {
+
+    interface Sink {
+        void onTap(long seq, long eventTime, int tag);
+    }
+
+    private final long[] times;
+    private final int[] tags;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next seq to write, producer-owned
+    private final AtomicLong tail = new AtomicLong(); // next seq to read, consumer-owned
+
+    /** {@code capacity} must be a power of two. */
+    TapRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        times = new long[capacity];
+        tags = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Producer side. Returns the tap's sequence number, or -1 if the ring is full. */
+    long offer(long eventTime, int tag) {
+        long seq = head.get();
+        if (seq - tail.get() >= times.length) return -1;
+        times[(int) (seq & mask)] = eventTime;
+        tags[(int) (seq & mask)] = tag;
+        head.lazySet(seq + 1);
+        return seq;
+    }
+
+    /** Consumer side. Hands every available tap to {@code sink} in order; returns how many. */
+    int drain(Sink sink) {
+        long seq = tail.get();
+        long end = head.get();
+        int count = 0;
+        while (seq < end) {
+            long time = times[(int) (seq & mask)];
+            int tag = tags[(int) (seq & mask)];
+            tail.lazySet(seq + 1);
+            sink.onTap(seq, time, tag);
+            seq++;
+            count++;
+        }
+        return count;
+    }
+
+    int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    int capacity() {
+        return times.length;
+    }
+}
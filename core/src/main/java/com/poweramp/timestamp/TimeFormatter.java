@@ -0,0 +1,131 @@
+package com.poweramp.timestamp;
+
+/**
+ * Formats playback positions as {@code hh:mm:ss} or {@code hh:mm:ss.SSS}.
+ *
+ * Seconds mode is byte-for-byte identical to
+ * {@code String.format(Locale.US, "%02d:%02d:%02d", h, m, s)}: hours are zero-padded to two
+ * digits and simply grow past 99. The array overloads write into caller-supplied buffers and
+ * allocate nothing. Negative positions are formatted as zero.
+ *
+ * Instances hold a scratch buffer and are not thread-safe; keep one per thread.
+ */
+final class TimeFormatter {
+
+    /** Longest possible output: 13 hour digits for Long.MAX_VALUE ms plus ":mm:ss.SSS". */
+    static final int MAX_LENGTH = 23;
+
+    private final boolean millis;
+    private final char[] scratch = new char[MAX_LENGTH];
+
+    TimeFormatter(boolean millis) {
+        this.millis = millis;
+    }
+
+    boolean isMillis() {
+        return millis;
+    }
+
+    String format(long milliseconds) {
+        int length = format(milliseconds, scratch, 0);
+        return new String(scratch, 0, length);
+    }
+
+    /** Writes the formatted position at {@code dst[off]} and returns the number of chars written. */
+    int format(long milliseconds, char[] dst, int off) {
+        if (milliseconds < 0) milliseconds = 0;
+        long seconds = milliseconds / 1000;
+        long hours = seconds / 3600;
+        int minutes = (int) ((seconds % 3600) / 60);
+        int secs = (int) (seconds % 60);
+
+        int pos = writeHours(hours, dst, off);
+        dst[pos++] = ':';
+        dst[pos++] = (char) ('0' + minutes / 10);
+        dst[pos++] = (char) ('0' + minutes % 10);
+        dst[pos++] = ':';
+        dst[pos++] = (char) ('0' + secs / 10);
+        dst[pos++] = (char) ('0' + secs % 10);
+        if (millis) {
+            int ms = (int) (milliseconds % 1000);
+            dst[pos++] = '.';
+            dst[pos++] = (char) ('0' + ms / 100);
+            dst[pos++] = (char) ('0' + (ms / 10) % 10);
+            dst[pos++] = (char) ('0' + ms % 10);
+        }
+        return pos - off;
+    }
+
+    /** ASCII variant of {@link #format(long, char[], int)} for writing straight to a byte buffer. */
+    int format(long milliseconds, byte[] dst, int off) {
+        int length = format(milliseconds, scratch, 0);
+        for (int i = 0; i < length; i++) {
+            dst[off + i] = (byte) scratch[i];
+        }
+        return length;
+    }
+
+    /** The position {@code milliseconds} reads back as from its formatted text, see {@link #parse}. */
+    long readBack(long milliseconds) {
+        if (milliseconds < 0) return 0;
+        return millis ? milliseconds : milliseconds - milliseconds % 1000;
+    }
+
+    /**
+     * Parses {@code h+:mm:ss} or {@code h+:mm:ss.SSS} as written by either mode, ignoring
+     * surrounding whitespace. Returns the position in ms, or -1 if {@code text} is not a marker.
+     */
+    static long parse(String text) {
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) <= ' ') end--;
+        int pos = 0;
+        while (pos < end && text.charAt(pos) <= ' ') pos++;
+
+        long hours = 0;
+        int start = pos;
+        while (pos < end && isDigit(text.charAt(pos)) && pos - start < 13) {
+            hours = hours * 10 + (text.charAt(pos++) - '0');
+        }
+        if (pos == start || pos + 6 > end || text.charAt(pos) != ':' || text.charAt(pos + 3) != ':') return -1;
+        int minutes = twoDigits(text, pos + 1);
+        int seconds = twoDigits(text, pos + 4);
+        if (minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59) return -1;
+        pos += 6;
+
+        int ms = 0;
+        if (pos < end) {
+            if (pos + 4 != end || text.charAt(pos) != '.') return -1;
+            int high = twoDigits(text, pos + 1);
+            char low = text.charAt(pos + 3);
+            if (high < 0 || !isDigit(low)) return -1;
+            ms = high * 10 + (low - '0');
+        }
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000 + ms;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int twoDigits(String text, int at) {
+        char a = text.charAt(at);
+        char b = text.charAt(at + 1);
+        return isDigit(a) && isDigit(b) ? (a - '0') * 10 + (b - '0') : -1;
+    }
+
+    private static int writeHours(long hours, char[] dst, int pos) {
+        if (hours < 100) {
+            dst[pos++] = (char) ('0' + hours / 10);
+            dst[pos++] = (char) ('0' + hours % 10);
+            return pos;
+        }
+        int digits = 0;
+        for (long h = hours; h > 0; h /= 10) digits++;
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            dst[i] = (char) ('0' + hours % 10);
+            hours /= 10;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,110 @@
+package com.poweramp.timestamp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on binary trace of the capture path.
+ *
+ * Each record is an {@link Event}, a {@link System#nanoTime()} stamp and two longs, written
+ * into a preallocated ring; recording never allocates or formats. Text is only produced by
+ * {@link #dump}, on demand. Any thread may record. A record being overwritten while it is
+ * dumped is detected through its stamp and skipped.
+ */
+final class TraceRecorder {
+
+    enum Event {
+        TAP("seq", "eventTime"),
+        TAP_DEDUPED("seq", "toleranceMs"),
+        CAPTURE_ESTIMATED("seq", "positionMs"),
+        CAPTURE_PARKED("seq", "pending"),
+        CAPTURE_SYNCED("seq", "waitedMs"),
+        CAPTURE_SAVED("positionMs", "createdFile"),
+        /** {@code source} is the source's index in {@link PositionSources} preference order. */
+        SYNC_REQUESTED("pending", "source"),
+        SYNC_TIMEOUT("seq", null),
+        /** A reading against the {@link PositionEstimator}; 0 drift while it stays in the window. */
+        SYNC_DRIFT("driftMs", "resolutionMs"),
+        BROADCAST("kind", "positionMs"),
+        BROADCAST_DUPLICATE("kind", "positionMs"),
+        TRACK_RESOLVED("hits", "misses"),
+        FILES_CLOSED(null, null);
+
+        final String labelA;
+        final String labelB;
+
+        Event(String labelA, String labelB) {
+            this.labelA = labelA;
+            this.labelB = labelB;
+        }
+    }
+
+    static final int CAPACITY = 2048;
+    private static final int MASK = CAPACITY - 1;
+    private static final Event[] EVENTS = Event.values();
+    private static final TraceRecorder INSTANCE = new TraceRecorder();
+
+    static TraceRecorder get() {
+        return INSTANCE;
+    }
+
+    private final AtomicLong next = new AtomicLong();
+    // Per slot: seq + 1 once complete, 0 while being written
+    private final AtomicLongArray stamps = new AtomicLongArray(CAPACITY);
+    private final int[] events = new int[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final long[] as = new long[CAPACITY];
+    private final long[] bs = new long[CAPACITY];
+
+    void record(Event event, long a, long b) {
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq & MASK);
+        stamps.set(slot, 0);
+        events[slot] = event.ordinal();
+        times[slot] = System.nanoTime();
+        as[slot] = a;
+        bs[slot] = b;
+        stamps.set(slot, seq + 1);
+    }
+
+    void record(Event event, long a) {
+        record(event, a, 0);
+    }
+
+    /** Total events recorded, including those since overwritten. */
+    long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Appends the retained events oldest first, one per line, with times relative to the newest
+     * event, e.g. {@code -12.35ms CAPTURE_SAVED positionMs=61000 createdFile=0}.
+     */
+    void dump(StringBuilder sb) {
+        long end = next.get();
+        long start = Math.max(0, end - CAPACITY);
+        long newest = 0;
+        if (end > 0) newest = times[(int) ((end - 1) & MASK)];
+        sb.append("trace: ").append(end - start).append(" of ").append(end).append(" events\n");
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & MASK);
+            if (stamps.get(slot) != seq + 1) continue;
+            Event event = EVENTS[events[slot]];
+            long time = times[slot];
+            long a = as[slot];
+            long b = bs[slot];
+            if (stamps.get(slot) != seq + 1) continue; // overwritten while reading
+
+            long micros = (time - newest) / 1000;
+            if (micros < 0) {
+                sb.append('-');
+                micros = -micros;
+            }
+            LatencyHistogram.appendMs(sb, micros);
+            sb.append(' ').append(event.name());
+            if (event.labelA != null) sb.append(' ').append(event.labelA).append('=').append(a);
+            if (event.labelB != null) sb.append(' ').append(event.labelB).append('=').append(b);
+            sb.append('\n');
+        }
+    }
+}
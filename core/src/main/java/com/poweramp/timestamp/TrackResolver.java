@@ -0,0 +1,72 @@
+package com.poweramp.timestamp;
+
+/**
+ * Resolves which marker file a {@link PlaybackState} belongs to.
+ *
+ * Tries the notification title, text and subtext (skipping {@code content://} URIs), then the
+ * broadcast track and path, and sanitizes the winner. The result only depends on the
+ * track-identifying fields, so it is cached per {@link PlaybackState#trackGeneration} and a tap
+ * on an unchanged track does no string work at all.
+ *
+ * Not thread-safe; use from a single worker thread.
+ */
+final class TrackResolver {
+
+    static final class ResolvedTrack {
+        final String source;
+        /** Sanitized name, which is also the {@link MarkerStore} key. */
+        final String name;
+
+        ResolvedTrack(String source, String name) {
+            this.source = source;
+            this.name = name;
+        }
+    }
+
+    private long cachedGeneration = -1;
+    private ResolvedTrack cached;
+    private long hits;
+    private long misses;
+
+    /** Returns the marker file for {@code state}, or null if no track can be identified. */
+    ResolvedTrack resolve(PlaybackState state) {
+        if (state.trackGeneration == cachedGeneration) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        cached = resolveUncached(state);
+        cachedGeneration = state.trackGeneration;
+        return cached;
+    }
+
+    /** True if {@link #resolve} would have to recompute for {@code state}. */
+    boolean isStale(PlaybackState state) {
+        return state.trackGeneration != cachedGeneration;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    private ResolvedTrack resolveUncached(PlaybackState state) {
+        String found = "";
+        if (isUsable(state.notificationTitle)) found = state.notificationTitle;
+        else if (isUsable(state.notificationText)) found = state.notificationText;
+        else if (isUsable(state.notificationSubText)) found = state.notificationSubText;
+        else if (!state.broadcastTrack.isEmpty()) found = state.broadcastTrack;
+        else if (!state.broadcastPath.isEmpty()) found = state.broadcastPath;
+
+        if (found.isEmpty()) return null;
+        String name = FilenameSanitizer.clean(found);
+        return new ResolvedTrack(found, name);
+    }
+
+    private static boolean isUsable(String value) {
+        return !value.isEmpty() && !value.startsWith("content://");
+    }
+}
@@ -0,0 +1,191 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+/**
+ * Burst taps through the same path as the overlay: {@link TapRing} on the tapping thread,
+ * {@link CaptureScheduler} and {@link MarkerRecorder} on a worker. Tap event times are 50 ms
+ * apart (20 taps/s) while playback runs from 0 at time 0, so marker {@code i} must land at
+ * exactly {@code i * 50} ms.
+ */
+public class BurstCaptureTest {
+
+    private static final long TAP_INTERVAL_MS = 50;
+    private static final PlaybackState TRACK =
+            new PlaybackState.Builder().notification("Burst Test", "", "", 1).build(1);
+
+    private final List<Long> captured = new ArrayList<>();
+    private final List<Long> lost = new ArrayList<>();
+    private MarkerRecorder recorder;
+    private CaptureScheduler scheduler;
+    private File dir;
+
+    private final CaptureScheduler.Host host = new CaptureScheduler.Host() {
+        @Override
+        public long uptime() {
+            return 0;
+        }
+
+        @Override
+        public void scheduleTimeout(CaptureScheduler.Capture capture, long delayMs) {
+        }
+
+        @Override
+        public void cancelTimeout(CaptureScheduler.Capture capture) {
+        }
+
+        @Override
+        public void onParked(CaptureScheduler.Capture capture) {
+        }
+
+        @Override
+        public void beforeSync() {
+        }
+
+        @Override
+        public void onCapture(CaptureScheduler.Capture capture, long positionMs, PlaybackState state) {
+            captured.add(capture.seq);
+            try {
+                recorder.record(TRACK, positionMs, 1);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void onCaptureLost(CaptureScheduler.Capture capture, boolean timedOut) {
+            lost.add(capture.seq);
+        }
+    };
+
+    private void setUp(long dedupToleranceMs) throws IOException {
+        dir = Files.createTempDirectory("burst-test").toFile();
+        recorder = new MarkerRecorder(new TrackResolver(), new TimeFormatter(true),
+                new MarkerWriter(new FileMarkerStore(dir), 4, MarkerWriter.FsyncPolicy.NEVER),
+                new MarkerJournal(new File(dir, "j"), new File(dir, "j.names"), 4096), null);
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(0, 1, 0);
+        estimator.setPlaying(true, 0);
+        PositionSource source = new PositionSource() {
+            @Override
+            public String getName() {
+                return "none";
+            }
+
+            @Override
+            public long getResolutionMs() {
+                return 1;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public void requestPosition() {
+            }
+        };
+        scheduler = new CaptureScheduler(estimator, new PositionSources(source), source, host);
+        scheduler.setDedupToleranceMs(dedupToleranceMs);
+    }
+
+    /** Markers in {@code Burst Test}'s file, in file order. */
+    private List<Long> markers() throws IOException {
+        recorder.close();
+        byte[] data = MarkerStore.readAll(new FileMarkerStore(dir), "Burst Test");
+        List<Long> positions = new ArrayList<>();
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+        for (String line; (line = in.readLine()) != null; ) {
+            long position = TimeFormatter.parse(line);
+            if (position >= 0) positions.add(position);
+        }
+        return positions;
+    }
+
+    @Test
+    public void concurrentBurstIsLosslessAndOrdered() throws Exception {
+        setUp(0);
+        final int taps = 5000;
+        final TapRing ring = new TapRing(64);
+        final AtomicBoolean done = new AtomicBoolean();
+        final TapRing.Sink sink = new TapRing.Sink() {
+            @Override
+            public void onTap(long seq, long eventTime, int tag) {
+                scheduler.begin(seq, eventTime, tag);
+            }
+        };
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        Future<?> drained = worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get() || ring.size() > 0) {
+                    if (ring.drain(sink) == 0) Thread.yield();
+                }
+            }
+        });
+
+        // The tapping thread never blocks; a full ring is retried like a user tapping again
+        for (int i = 0; i < taps; i++) {
+            while (ring.offer(i * TAP_INTERVAL_MS, 0) < 0) {
+                Thread.yield();
+            }
+        }
+        done.set(true);
+        drained.get(30, TimeUnit.SECONDS);
+        worker.shutdown();
+
+        assertEquals(0, lost.size());
+        assertEquals(taps, captured.size());
+        for (int i = 0; i < taps; i++) {
+            assertEquals(i, (long) captured.get(i));
+        }
+        List<Long> positions = markers();
+        assertEquals(taps, positions.size());
+        for (int i = 0; i < taps; i++) {
+            assertEquals(i * TAP_INTERVAL_MS, (long) positions.get(i));
+        }
+    }
+
+    @Test
+    public void dedupBelowTapIntervalKeepsEveryTap() throws Exception {
+        setUp(TAP_INTERVAL_MS - 10);
+        for (int i = 0; i < 100; i++) {
+            scheduler.begin(i, i * TAP_INTERVAL_MS, 0);
+        }
+        assertEquals(100, markers().size());
+    }
+
+    @Test
+    public void dedupDropsTapsInsideToleranceOfTheLastKeptOne() throws Exception {
+        setUp(TAP_INTERVAL_MS + 10);
+        for (int i = 0; i < 100; i++) {
+            scheduler.begin(i, i * TAP_INTERVAL_MS, 0);
+        }
+        List<Long> positions = markers();
+        // Each kept tap swallows the next, so every other one survives
+        assertEquals(50, positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            assertEquals(i * 2 * TAP_INTERVAL_MS, (long) positions.get(i));
+        }
+        assertTrue(lost.isEmpty());
+    }
+}
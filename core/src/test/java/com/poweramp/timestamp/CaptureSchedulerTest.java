@@ -0,0 +1,133 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class CaptureSchedulerTest {
+
+    private final List<CaptureScheduler.Capture> parked = new ArrayList<>();
+    private final List<Long> captured = new ArrayList<>();
+    private final List<Long> lost = new ArrayList<>();
+    private final PositionEstimator estimator = new PositionEstimator();
+
+    private final PositionSource source = new PositionSource() {
+        @Override
+        public String getName() {
+            return "silent";
+        }
+
+        @Override
+        public long getResolutionMs() {
+            return 1;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public void requestPosition() {
+            // Never answers
+        }
+    };
+
+    private final CaptureScheduler scheduler = new CaptureScheduler(estimator, new PositionSources(source), source,
+            new CaptureScheduler.Host() {
+                @Override
+                public long uptime() {
+                    return 0;
+                }
+
+                @Override
+                public void scheduleTimeout(CaptureScheduler.Capture capture, long delayMs) {
+                }
+
+                @Override
+                public void cancelTimeout(CaptureScheduler.Capture capture) {
+                }
+
+                @Override
+                public void onParked(CaptureScheduler.Capture capture) {
+                    parked.add(capture);
+                }
+
+                @Override
+                public void beforeSync() {
+                }
+
+                @Override
+                public void onCapture(CaptureScheduler.Capture capture, long positionMs, PlaybackState state) {
+                    captured.add(positionMs);
+                }
+
+                @Override
+                public void onCaptureLost(CaptureScheduler.Capture capture, boolean timedOut) {
+                    lost.add(capture.seq);
+                }
+            });
+
+    private static PowerAmpEvent sync(long positionMs, long uptime) {
+        return new PowerAmpEvent(PowerAmpEvent.Kind.POSITION_SYNC, positionMs, null, null, false, false, uptime, 0);
+    }
+
+    @Test
+    public void parkedWithoutAnEstimateIsLostOnTimeout() {
+        scheduler.begin(1, 100, 0);
+        assertEquals(1, parked.size());
+        assertEquals(-1, parked.get(0).fallbackMs);
+        scheduler.expire(parked.get(0));
+        assertTrue(captured.isEmpty());
+        assertEquals(1, (long) lost.get(0));
+    }
+
+    @Test
+    public void parkedBehindAnotherFallsBackToItsEstimate() {
+        scheduler.begin(1, 100, 0);
+        // An anchor arrives, but the first capture is still waiting for its sync
+        estimator.onSync(10_000, 1, 200);
+        estimator.setPlaying(true, 200);
+        scheduler.begin(2, 300, 0);
+        assertEquals(2, parked.size());
+        assertEquals(10_100, parked.get(1).fallbackMs);
+
+        scheduler.expire(parked.get(0));
+        scheduler.expire(parked.get(1));
+        assertEquals(1, lost.size());
+        assertEquals(1, captured.size());
+        assertEquals(10_100, (long) captured.get(0));
+    }
+
+    @Test
+    public void syncReplyWithoutPlayStateDoesNotAnswerLaterTaps() {
+        // Service started while PowerAmp was already playing: no STATUS broadcast yet
+        scheduler.begin(1, 100, 0);
+        scheduler.onEvent(sync(10_000, 150), PlaybackState.current());
+        assertEquals(1, captured.size());
+
+        // The anchor alone must not answer the next tap, or it would repeat 10_000
+        scheduler.begin(2, 3000, 0);
+        assertEquals(1, captured.size());
+        assertEquals(2, parked.size());
+        assertEquals(-1, parked.get(1).fallbackMs);
+        assertEquals(1, scheduler.pendingCount());
+
+        scheduler.onEvent(sync(13_000, 3050), PlaybackState.current());
+        assertEquals(13_000, (long) captured.get(1));
+    }
+
+    @Test
+    public void readingCompletesParkedCapturesInsteadOfTheFallback() {
+        scheduler.begin(1, 100, 0);
+        scheduler.onPosition(source, 5000, false, 1f, 150, true);
+        assertEquals(1, captured.size());
+        assertEquals(5000, (long) captured.get(0));
+        scheduler.expire(parked.get(0));
+        assertEquals(1, captured.size());
+        assertTrue(lost.isEmpty());
+    }
+}
@@ -0,0 +1,56 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class FilenameSanitizerTest {
+
+    /** The chain {@link FilenameSanitizer} replaced, from the original service. */
+    private static String legacyClean(String filename) {
+        if (filename == null || filename.isEmpty()) return "";
+        if (filename.contains("/")) filename = filename.substring(filename.lastIndexOf("/") + 1);
+        if (filename.contains(".")) filename = filename.substring(0, filename.lastIndexOf("."));
+        return filename.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+    }
+
+    @Test
+    public void examples() {
+        assertEquals("", FilenameSanitizer.clean(null));
+        assertEquals("", FilenameSanitizer.clean(""));
+        assertEquals("Song", FilenameSanitizer.clean("/storage/emulated/0/Music/Song.mp3"));
+        assertEquals("Artist - Title", FilenameSanitizer.clean("Artist - Title"));
+        assertEquals("AC_DC _ Live_", FilenameSanitizer.clean("AC/DC | Live?".replace('/', '\\')));
+        assertEquals("a.b", FilenameSanitizer.clean("  a.b.flac  "));
+        assertEquals("", FilenameSanitizer.clean("dir/.hidden"));
+    }
+
+    @Test
+    public void matchesLegacyChain() {
+        String[] inputs = {
+            "Song.mp3", "/a/b/c.d.e", "no extension", "trailing dot.", ".leading",
+            "dir.with.dots/file", "dir/file.with.dots.ogg", "  padded  .mp3", "tab\tname\t.mp3",
+            "a:b*c?d\"e<f>g|h\\i", "/", "///", ".", "..", "x/ y /", "ünïcödé – title.m4a",
+            "1. Intro.flac", "  ", "/storage/emulated/0/Music/ Artist - Title (Live) .opus",
+        };
+        for (String input : inputs) {
+            assertEquals(input, legacyClean(input), FilenameSanitizer.clean(input));
+        }
+    }
+
+    @Test
+    public void matchesLegacyChainOnRandomInput() {
+        String alphabet = "ab /.\\:*?\"<>|\t-é";
+        Random random = new Random(42);
+        char[] buf = new char[12];
+        for (int n = 0; n < 20_000; n++) {
+            int length = random.nextInt(buf.length + 1);
+            for (int i = 0; i < length; i++) {
+                buf[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            String input = new String(buf, 0, length);
+            assertEquals(input, legacyClean(input), FilenameSanitizer.clean(input));
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Sustained-load run of the ingestion and capture path against {@link PowerAmpSimulator}.
+ *
+ * The worker is wired like {@code CapturePipeline}: broadcasts are handed over through
+ * {@link PowerAmpIngest}, taps go through a {@link TapRing} into a {@link CaptureScheduler}, and
+ * markers are written by a {@link MarkerRecorder} with its journal and index. Every capture is
+ * compared with the simulator's true position at the tap.
+ *
+ * The unit suite only runs a short smoke load that checks every tap is accounted for. The
+ * fixed-length runs with accuracy thresholds are {@link TimingSensitive}. For longer or harsher
+ * runs use {@code gradle :core:loadTest}; settings are {@code key=value} arguments naming the
+ * fields of this class and of {@link PowerAmpSimulator.Config}, e.g.
+ * {@code --args="seconds=30 tapsPerSecond=50 jitterMs=80"}. Marker files go under the
+ * {@code bench.dir} system property.
+ */
+public class IngestLoadTest {
+
+    /**
+     * Bounds on |capture - true position| at the nominal rates. Until the estimator has narrowed
+     * PowerAmp's whole-second readings down, a capture can be off by up to that resolution; once
+     * it has, errors are a few ms.
+     */
+    private static final long MAX_P50_ERROR_MS = 50;
+    private static final long MAX_P99_ERROR_MS = PositionEstimator.POWERAMP_RESOLUTION_MS;
+    private static final long COALESCE_MS = 200;
+    private static final int TAP_RING_CAPACITY = 64;
+
+    long seconds = 20;
+    double tapsPerSecond = 20;
+
+    private final PowerAmpSimulator.Config config = new PowerAmpSimulator.Config();
+    private PowerAmpSimulator simulator;
+    private MarkerRecorder recorder;
+    private ScheduledThreadPoolExecutor worker;
+    private CaptureScheduler scheduler;
+    private final TapRing taps = new TapRing(TAP_RING_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final PositionEstimator estimator = new PositionEstimator();
+
+    // Only touched on the worker
+    private long errorSum;
+    private long flushes;
+
+    private final AtomicLong tapsOffered = new AtomicLong();
+    private final AtomicLong tapsRejected = new AtomicLong();
+    private final AtomicLong captures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LatencyHistogram error = new LatencyHistogram("|error|");
+    private final LatencyHistogram tapToSaved = new LatencyHistogram("tap→saved");
+    private final LatencyHistogram ingestLag = new LatencyHistogram("ingest→worker");
+
+    public static void main(String[] args) throws Exception {
+        IngestLoadTest test = new IngestLoadTest();
+        for (String arg : args) test.set(arg);
+        System.out.println(test.run());
+    }
+
+    @Test
+    public void shortRunAccountsForEveryTap() throws Exception {
+        seconds = 1;
+        String report = run();
+        assertEquals(report, 0, failures.get());
+        assertEquals(report, tapsOffered.get() - tapsRejected.get(), captures.get() + timeouts.get());
+    }
+
+    @Test
+    @Category(TimingSensitive.class)
+    public void nominalRatesLoseNothing() throws Exception {
+        seconds = 10;
+        String report = run();
+        assertEquals(report, 0, tapsRejected.get());
+        assertEquals(report, 0, timeouts.get());
+        assertEquals(report, 0, failures.get());
+        assertEquals(report, tapsOffered.get(), captures.get());
+        assertTrue(report, error.percentileMicros(50) <= MAX_P50_ERROR_MS * 1000);
+        assertTrue(report, error.percentileMicros(99) < MAX_P99_ERROR_MS * 1000);
+    }
+
+    @Test
+    @Category(TimingSensitive.class)
+    public void slowRepliesStillResolveInTime() throws Exception {
+        seconds = 6;
+        config.deliveryDelayMs = 60;
+        config.replyDelayMs = 100;
+        config.jitterMs = 40;
+        config.syncPerSecond = 0;
+        String report = run();
+        assertEquals(report, 0, timeouts.get());
+        assertEquals(report, 0, failures.get());
+        assertEquals(report, tapsOffered.get() - tapsRejected.get(), captures.get());
+    }
+
+    /** Applies one {@code key=value} setting to this run or to the simulator config. */
+    void set(String arg) throws ReflectiveOperationException {
+        int eq = arg.indexOf('=');
+        if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+        String key = arg.substring(0, eq);
+        String value = arg.substring(eq + 1);
+        Object target = this;
+        Field field;
+        try {
+            field = IngestLoadTest.class.getDeclaredField(key);
+        } catch (NoSuchFieldException e) {
+            field = PowerAmpSimulator.Config.class.getDeclaredField(key);
+            target = config;
+        }
+        Class<?> type = field.getType();
+        if (type == long.class) field.setLong(target, Long.parseLong(value));
+        else if (type == double.class) field.setDouble(target, Double.parseDouble(value));
+        else if (type == boolean.class) field.setBoolean(target, Boolean.parseBoolean(value));
+        else throw new IllegalArgumentException("Not a setting: " + key);
+    }
+
+    String run() throws Exception {
+        File base = new File(System.getProperty("bench.dir", System.getProperty("java.io.tmpdir")));
+        File dir = Files.createTempDirectory(base.toPath(), "load-test").toFile();
+        File markers = new File(dir, "markers");
+        markers.mkdirs();
+        recorder = new MarkerRecorder(new TrackResolver(), new TimeFormatter(true),
+                new MarkerWriter(new FileMarkerStore(markers), 4, MarkerWriter.FsyncPolicy.NEVER),
+                new MarkerJournal(new File(dir, "markers.journal"), new File(dir, "markers.journal.names"), 4096),
+                new MarkerJournal(new File(dir, "markers.held"), new File(dir, "markers.held.names"), 256),
+                new MarkerIndex(new File(dir, "markers.index"), new File(dir, "markers.index.log")));
+
+        worker = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "capture-worker");
+            }
+        });
+        // Timeouts of captures that were already resolved need not hold up shutdown
+        worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        simulator = new PowerAmpSimulator(config);
+        scheduler = new CaptureScheduler(estimator, new PositionSources(simulator), simulator, host);
+        PowerAmpIngest.Listener ingestListener = new PowerAmpIngest.Listener() {
+            @Override
+            public void onPowerAmpEvent(final PowerAmpEvent event, final PlaybackState state) {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ingestLag.recordMillis(PowerAmpSimulator.uptime() - event.uptime);
+                        scheduler.onEvent(event, state);
+                    }
+                });
+            }
+        };
+        PowerAmpIngest.get().addListener(ingestListener);
+        worker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.materialize();
+                    flushes++;
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        }, COALESCE_MS, COALESCE_MS, TimeUnit.MILLISECONDS);
+
+        CaptureMetrics.get().reset();
+        simulator.start();
+        long start = PowerAmpSimulator.uptime();
+        tapUntil(start + seconds * 1000);
+        long elapsed = PowerAmpSimulator.uptime() - start;
+
+        // Let parked captures finish or time out before reporting
+        long deadline = PowerAmpSimulator.uptime() + CaptureScheduler.SYNC_TIMEOUT_MS + 1000;
+        while (pending() > 0 && PowerAmpSimulator.uptime() < deadline) {
+            Thread.sleep(10);
+        }
+        simulator.stop();
+        PowerAmpIngest.get().removeListener(ingestListener);
+        worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        worker.shutdown();
+        worker.awaitTermination(10, TimeUnit.SECONDS);
+        return report(elapsed);
+    }
+
+    /** Captures parked on the worker, asked on the worker. */
+    private int pending() throws Exception {
+        return worker.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return scheduler.pendingCount();
+            }
+        }).get();
+    }
+
+    /** Taps at {@link #tapsPerSecond} from this thread, like touch events on the main thread. */
+    private void tapUntil(long end) throws InterruptedException {
+        long periodNanos = (long) (1_000_000_000 / tapsPerSecond);
+        long next = System.nanoTime();
+        while (PowerAmpSimulator.uptime() < end) {
+            tapsOffered.incrementAndGet();
+            if (taps.offer(PowerAmpSimulator.uptime(), 0) < 0) {
+                tapsRejected.incrementAndGet();
+            } else if (drainScheduled.compareAndSet(false, true)) {
+                worker.execute(drainRunnable);
+            }
+            next += periodNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+        }
+    }
+
+    private final TapRing.Sink tapSink = new TapRing.Sink() {
+        @Override
+        public void onTap(long seq, long eventTime, int tag) {
+            scheduler.begin(seq, eventTime, tag);
+        }
+    };
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            taps.drain(tapSink);
+        }
+    };
+
+    private final CaptureScheduler.Host host = new CaptureScheduler.Host() {
+        @Override
+        public long uptime() {
+            return PowerAmpSimulator.uptime();
+        }
+
+        @Override
+        public void scheduleTimeout(final CaptureScheduler.Capture capture, long delayMs) {
+            worker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.expire(capture);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void cancelTimeout(CaptureScheduler.Capture capture) {
+            // expire() finds the capture gone
+        }
+
+        @Override
+        public void onParked(CaptureScheduler.Capture capture) {
+            try {
+                capture.journalSeq = recorder.hold(PlaybackState.current(), capture.fallbackMs,
+                        System.currentTimeMillis());
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void beforeSync() {
+        }
+
+        @Override
+        public void onCapture(CaptureScheduler.Capture capture, long positionMs, PlaybackState state) {
+            complete(capture, state, positionMs);
+        }
+
+        @Override
+        public void onCaptureLost(CaptureScheduler.Capture capture, boolean timedOut) {
+            if (timedOut) {
+                timeouts.incrementAndGet();
+            } else {
+                failures.incrementAndGet();
+            }
+        }
+    };
+
+    private void complete(CaptureScheduler.Capture capture, PlaybackState state, long position) {
+        long tapTime = capture.tapTime;
+        try {
+            if (recorder.resolve(capture.journalSeq, state, position, System.currentTimeMillis()) == null) {
+                failures.incrementAndGet();
+                return;
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            return;
+        }
+        long err = position - simulator.truePosition(tapTime);
+        errorSum += err;
+        error.recordMillis(Math.abs(err));
+        tapToSaved.recordMillis(PowerAmpSimulator.uptime() - tapTime);
+        captures.incrementAndGet();
+    }
+
+    private String report(long elapsedMs) {
+        double secs = elapsedMs / 1000.0;
+        long saved = captures.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("load test: ").append(elapsedMs).append(" ms, ")
+                .append(simulator.getEmitted()).append(" broadcasts sent (")
+                .append(rate(simulator.getEmitted(), secs)).append("/s), ")
+                .append(simulator.getRequests()).append(" position requests\n");
+        sb.append("taps: offered=").append(tapsOffered.get())
+                .append(" rejected=").append(tapsRejected.get())
+                .append(" saved=").append(saved).append(" (").append(rate(saved, secs)).append("/s)")
+                .append(" timeouts=").append(timeouts.get())
+                .append(" failures=").append(failures.get())
+                .append(" flushes=").append(flushes).append('\n');
+        sb.append("mean signed error ms: ").append(saved == 0 ? 0 : errorSum / saved).append('\n');
+        for (LatencyHistogram h : new LatencyHistogram[] {error, tapToSaved, ingestLag}) {
+            h.appendTo(sb);
+            sb.append('\n');
+        }
+        sb.append(estimator).append('\n');
+        sb.append(CaptureMetrics.get().report(PowerAmpSimulator.uptime()));
+        return sb.toString();
+    }
+
+    private static String rate(long count, double secs) {
+        return String.format("%.1f", count / secs);
+    }
+}
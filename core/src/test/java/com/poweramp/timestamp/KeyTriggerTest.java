@@ -0,0 +1,150 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class KeyTriggerTest {
+
+    private static final int UP = KeyTrigger.KEYCODE_VOLUME_UP;
+    private static final int DOWN = KeyTrigger.KEYCODE_VOLUME_DOWN;
+    private static final int HOOK = KeyTrigger.KEYCODE_HEADSETHOOK;
+    private static final int PLAY_PAUSE = KeyTrigger.KEYCODE_MEDIA_PLAY_PAUSE;
+
+    private final List<Long> triggers = new ArrayList<>();
+    private final KeyTrigger trigger = new KeyTrigger(new KeyTrigger.Sink() {
+        @Override
+        public void onTrigger(long eventTime) {
+            triggers.add(eventTime);
+        }
+    });
+
+    private boolean press(int keyCode, long time) {
+        return trigger.onKey(keyCode, true, 0, time);
+    }
+
+    private boolean release(int keyCode, long time) {
+        return trigger.onKey(keyCode, false, 0, time);
+    }
+
+    @Test
+    public void offByDefault() {
+        assertEquals(KeyTrigger.Mode.OFF, trigger.getMode());
+        assertFalse(press(UP, 100));
+        assertFalse(press(DOWN, 120));
+        assertFalse(press(HOOK, 200));
+        assertTrue(triggers.isEmpty());
+    }
+
+    @Test
+    public void parseFallsBackToOff() {
+        assertEquals(KeyTrigger.Mode.BOTH, KeyTrigger.Mode.parse("BOTH"));
+        assertEquals(KeyTrigger.Mode.VOLUME_CHORD, KeyTrigger.Mode.parse("VOLUME_CHORD"));
+        assertEquals(KeyTrigger.Mode.OFF, KeyTrigger.Mode.parse(null));
+        assertEquals(KeyTrigger.Mode.OFF, KeyTrigger.Mode.parse(""));
+        assertEquals(KeyTrigger.Mode.OFF, KeyTrigger.Mode.parse("volume_chord"));
+        assertEquals(KeyTrigger.Mode.OFF, KeyTrigger.Mode.parse("REMOVED_MODE"));
+    }
+
+    @Test
+    public void chordIsDatedAtFirstPressAndSwallowsSecondKey() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        // The first key cannot be held back
+        assertFalse(press(UP, 100));
+        assertTrue(press(DOWN, 100 + KeyTrigger.CHORD_MS));
+        assertEquals(1, triggers.size());
+        assertEquals(100, (long) triggers.get(0));
+
+        // The second key is consumed through its repeats and release; the first is not
+        assertTrue(trigger.onKey(DOWN, true, 1, 900));
+        assertFalse(release(UP, 950));
+        assertTrue(release(DOWN, 1000));
+        assertFalse(press(DOWN, 2000));
+        assertEquals(1, triggers.size());
+    }
+
+    @Test
+    public void slowSecondKeyIsNotAChord() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        assertFalse(press(DOWN, 100));
+        assertFalse(press(UP, 101 + KeyTrigger.CHORD_MS));
+        assertTrue(triggers.isEmpty());
+    }
+
+    @Test
+    public void releasedKeyDoesNotStartAChord() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        assertFalse(press(UP, 100));
+        assertFalse(release(UP, 150));
+        assertFalse(press(DOWN, 200));
+        assertTrue(triggers.isEmpty());
+    }
+
+    @Test
+    public void autoRepeatIsNotASecondPress() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        assertFalse(press(UP, 100));
+        assertFalse(trigger.onKey(DOWN, true, 3, 150));
+        assertTrue(triggers.isEmpty());
+    }
+
+    @Test
+    public void chordsRepeat() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        for (int i = 0; i < 3; i++) {
+            long t = 1000L * i;
+            press(UP, t);
+            press(DOWN, t + 50);
+            release(UP, t + 200);
+            release(DOWN, t + 210);
+        }
+        assertEquals(3, triggers.size());
+        assertEquals(2000, (long) triggers.get(2));
+    }
+
+    @Test
+    public void headsetButtonOnlyWhenEnabled() {
+        trigger.setMode(KeyTrigger.Mode.VOLUME_CHORD);
+        assertFalse(press(HOOK, 100));
+        assertFalse(release(HOOK, 150));
+        assertTrue(triggers.isEmpty());
+
+        trigger.setMode(KeyTrigger.Mode.HEADSET);
+        assertTrue(press(HOOK, 300));
+        assertTrue(trigger.onKey(HOOK, true, 1, 700));
+        assertTrue(release(HOOK, 800));
+        assertTrue(press(PLAY_PAUSE, 1000));
+        assertTrue(release(PLAY_PAUSE, 1100));
+        assertEquals(2, triggers.size());
+        assertEquals(300, (long) triggers.get(0));
+        assertEquals(1000, (long) triggers.get(1));
+
+        // Volume chord is off in headset mode
+        assertFalse(press(UP, 2000));
+        assertFalse(press(DOWN, 2010));
+        assertEquals(2, triggers.size());
+    }
+
+    @Test
+    public void bothModesTogether() {
+        trigger.setMode(KeyTrigger.Mode.BOTH);
+        assertTrue(press(HOOK, 100));
+        assertTrue(release(HOOK, 150));
+        assertFalse(press(DOWN, 500));
+        assertTrue(press(UP, 520));
+        assertEquals(2, triggers.size());
+        assertEquals(500, (long) triggers.get(1));
+    }
+
+    @Test
+    public void otherKeysPassThrough() {
+        trigger.setMode(KeyTrigger.Mode.BOTH);
+        assertFalse(press(4, 100));
+        assertFalse(release(4, 150));
+        assertTrue(triggers.isEmpty());
+    }
+}
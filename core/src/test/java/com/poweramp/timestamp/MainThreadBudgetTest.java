@@ -0,0 +1,126 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Everything the capture path runs on the main thread must finish within a frame, whatever the
+ * worker is doing: queueing a tap on the {@link TapRing}, recording input latency, and
+ * ingesting a broadcast from the manifest receiver (which only hands the event to the worker).
+ */
+@Category(TimingSensitive.class)
+public class MainThreadBudgetTest {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private static final PlaybackState TRACK =
+            new PlaybackState.Builder().notification("Budget Test", "", "", 1).build(1);
+
+    @Test
+    public void tapNeverWaitsForAStalledWorker() throws Exception {
+        TapRing ring = new TapRing(64);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        // The worker is stuck and never drains
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        long worst = 0;
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            long start = System.nanoTime();
+            if (ring.offer(i, 0) >= 0) accepted++;
+            worst = Math.max(worst, System.nanoTime() - start);
+        }
+        release.countDown();
+        worker.shutdown();
+
+        assertEquals(ring.capacity(), accepted);
+        assertTrue("worst tap took " + worst + "ns", worst < FRAME_NANOS);
+    }
+
+    @Test
+    public void mainThreadWorkStaysUnderAFrameWhileWorkerWrites() throws Exception {
+        File dir = Files.createTempDirectory("budget-test").toFile();
+        final MarkerRecorder recorder = new MarkerRecorder(new TrackResolver(), new TimeFormatter(true),
+                new MarkerWriter(new FileMarkerStore(dir), 4, MarkerWriter.FsyncPolicy.ON_FLUSH),
+                new MarkerJournal(new File(dir, "j"), new File(dir, "j.names"), 4096),
+                new MarkerIndex(new File(dir, "index"), new File(dir, "index.log")));
+        final TapRing ring = new TapRing(64);
+        final ExecutorService worker = Executors.newSingleThreadExecutor();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final TapRing.Sink sink = new TapRing.Sink() {
+            @Override
+            public void onTap(long seq, long eventTime, int tag) {
+                try {
+                    recorder.record(TRACK, eventTime, 1);
+                    recorder.materialize();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        // Busy worker: drains taps and keeps writing and fsyncing between them
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                long position = 0;
+                while (!stop.get()) {
+                    ring.drain(sink);
+                    sink.onTap(-1, position += 10, 0);
+                }
+            }
+        });
+        PowerAmpIngest.Listener handOff = new PowerAmpIngest.Listener() {
+            @Override
+            public void onPowerAmpEvent(PowerAmpEvent event, PlaybackState state) {
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+        };
+        PowerAmpIngest.get().addListener(handOff);
+        LatencyHistogram input = new LatencyHistogram("input");
+
+        long worst = 0;
+        try {
+            for (int i = 0; i < 2000; i++) {
+                long start = System.nanoTime();
+                ring.offer(i, 0);
+                input.recordNanos(System.nanoTime() - start);
+                PowerAmpIngest.get().offer(new PowerAmpEvent(PowerAmpEvent.Kind.STATUS, i * 1000L,
+                        "", "", true, false, 10_000L * i, i));
+                worst = Math.max(worst, System.nanoTime() - start);
+                if (i % 100 == 0) Thread.sleep(1);
+            }
+        } finally {
+            PowerAmpIngest.get().removeListener(handOff);
+            stop.set(true);
+            worker.shutdown();
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+            recorder.close();
+        }
+        assertTrue("worst main-thread step took " + worst + "ns", worst < FRAME_NANOS);
+    }
+}
@@ -0,0 +1,96 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MarkerIndexTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("index-test").toFile();
+    }
+
+    private MarkerIndex open() throws IOException {
+        return new MarkerIndex(new File(dir, "markers.index"), new File(dir, "markers.index.log"));
+    }
+
+    @Test
+    public void snapshotAndLogSurviveReopen() throws IOException {
+        MarkerIndex index = open();
+        assertFalse(index.hasSnapshot());
+        index.add("A", 1000, 10);
+        index.compact();
+        index.add("A", 2000, 20);
+        index.add("B", 500, 30);
+        index.flush();
+
+        // Not closed: the second and third markers are only in the log
+        MarkerIndex reopened = open();
+        assertTrue(reopened.hasSnapshot());
+        assertEquals(3, reopened.markerCount());
+        MarkerIndex.Track a = reopened.get("A");
+        assertEquals(2, a.count());
+        assertEquals(1000, a.position(0));
+        assertEquals(2000, a.position(1));
+        assertEquals(500, reopened.get("B").position(0));
+        assertNull(reopened.get("C"));
+        assertEquals("B", reopened.latest().name);
+        reopened.close();
+    }
+
+    @Test
+    public void tracksAreListedByNameAndLatestFollowsWallTime() throws IOException {
+        MarkerIndex index = open();
+        assertEquals(0, index.trackCount());
+        assertNull(index.latest());
+        index.add("Zed", 1000, 100);
+        index.add("Alpha", 2000, 200);
+        index.add("Mid", 3000, 300);
+        assertEquals("Mid", index.latest().name);
+
+        // A new marker moves its track to the front; a late replayed one does not
+        index.add("Zed", 4000, 400);
+        index.add("Alpha", 500, 50);
+        MarkerIndex.Track latest = index.latest();
+        assertEquals("Zed", latest.name);
+        assertEquals(4000, latest.lastPositionMs);
+
+        assertEquals(3, index.trackCount());
+        List<String> names = new ArrayList<>();
+        for (MarkerIndex.Track t : index.tracks()) names.add(t.name);
+        assertEquals(Arrays.asList("Alpha", "Mid", "Zed"), names);
+        index.close();
+
+        MarkerIndex reopened = open();
+        assertEquals("Zed", reopened.latest().name);
+        assertEquals(4000, reopened.latest().lastPositionMs);
+        assertEquals(200, reopened.get("Alpha").lastWallTime);
+        reopened.close();
+    }
+
+    @Test
+    public void rebuildReadsMarkerFiles() throws IOException {
+        FileMarkerStore store = new FileMarkerStore(dir);
+        store.replace("Song", "Song\n0:00:01\nnot a marker\n0:01:00.250\n".getBytes(StandardCharsets.UTF_8));
+        MarkerIndex index = open();
+        assertEquals(1, index.rebuild(store));
+        assertEquals(2, index.markerCount());
+        assertEquals(60_250, index.get("Song").position(1));
+        index.close();
+        assertEquals(2, open().get("Song").count());
+    }
+}
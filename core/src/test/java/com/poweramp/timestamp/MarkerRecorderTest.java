@@ -0,0 +1,87 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Held captures and journal replay. A "crash" is a recorder that is dropped without being
+ * closed; the next one opens the same journal and replays it.
+ */
+public class MarkerRecorderTest {
+
+    private static final PlaybackState TRACK =
+            new PlaybackState.Builder().notification("Held Test", "", "", 1).build(1);
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("recorder-test").toFile();
+    }
+
+    private MarkerRecorder open() throws IOException {
+        return new MarkerRecorder(new TrackResolver(), new TimeFormatter(true),
+                new MarkerWriter(new FileMarkerStore(dir), 4, MarkerWriter.FsyncPolicy.NEVER),
+                new MarkerJournal(new File(dir, "j"), new File(dir, "j.names"), 64),
+                new MarkerJournal(new File(dir, "held"), new File(dir, "held.names"), 16), null);
+    }
+
+    private String contents() throws IOException {
+        return new String(MarkerStore.readAll(new FileMarkerStore(dir), "Held Test"), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void heldCaptureIsReplayedAtItsFallback() throws IOException {
+        MarkerRecorder recorder = open();
+        assertTrue(recorder.hold(TRACK, 5000, 1) > 0);
+        // Later captures are written, but the journal must keep the held one
+        recorder.record(TRACK, 6000, 2);
+        recorder.materialize();
+
+        MarkerRecorder restarted = open();
+        assertEquals(1, restarted.replay());
+        restarted.close();
+        assertEquals("Held Test\n00:00:06.000\n00:00:05.000\n", contents());
+    }
+
+    @Test
+    public void resolvedCaptureReplacesItsFallback() throws IOException {
+        MarkerRecorder recorder = open();
+        long held = recorder.hold(TRACK, 5000, 1);
+        recorder.resolve(held, TRACK, 5250, 2);
+
+        // Neither materialized: only the resolved position may come back
+        MarkerRecorder restarted = open();
+        assertEquals(1, restarted.replay());
+        restarted.close();
+        assertEquals("Held Test\n00:00:05.250\n", contents());
+    }
+
+    @Test
+    public void resolvedCaptureIsNotReplayed() throws IOException {
+        MarkerRecorder recorder = open();
+        long held = recorder.hold(TRACK, 5000, 1);
+        recorder.resolve(held, TRACK, 5250, 2);
+        recorder.materialize();
+
+        MarkerRecorder restarted = open();
+        assertEquals(0, restarted.replay());
+        restarted.close();
+        assertEquals("Held Test\n00:00:05.250\n", contents());
+    }
+
+    @Test
+    public void nothingIsHeldWithoutAFallback() throws IOException {
+        MarkerRecorder recorder = open();
+        assertEquals(0, recorder.hold(TRACK, -1, 1));
+        recorder.close();
+        assertEquals(0, open().replay());
+    }
+}
@@ -0,0 +1,153 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MarkerWriterTest {
+
+    /** A {@link FileMarkerStore} that counts whole-file reads and replaces. */
+    private static final class CountingStore implements MarkerStore {
+        final FileMarkerStore files;
+        int reads;
+        int replaces;
+
+        CountingStore(File dir) {
+            files = new FileMarkerStore(dir);
+        }
+
+        @Override
+        public Handle open(String name) throws IOException {
+            return files.open(name);
+        }
+
+        @Override
+        public InputStream read(String name) throws IOException {
+            reads++;
+            return files.read(name);
+        }
+
+        @Override
+        public List<String> names() throws IOException {
+            return files.names();
+        }
+
+        @Override
+        public long lastModified(String name) {
+            return files.lastModified(name);
+        }
+
+        @Override
+        public void replace(String name, byte[] content) throws IOException {
+            replaces++;
+            files.replace(name, content);
+        }
+
+        @Override
+        public String describe() {
+            return files.describe();
+        }
+    }
+
+    private CountingStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new CountingStore(Files.createTempDirectory("writer-test").toFile());
+    }
+
+    private MarkerWriter sorted(int maxOpen) {
+        return new MarkerWriter(store, maxOpen, MarkerWriter.FsyncPolicy.NEVER, 0);
+    }
+
+    private String contents(String name) throws IOException {
+        return new String(MarkerStore.readAll(store.files, name), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void fsyncPolicyParseFallsBackToOnClose() {
+        assertEquals(MarkerWriter.FsyncPolicy.NEVER, MarkerWriter.FsyncPolicy.parse("NEVER"));
+        assertEquals(MarkerWriter.FsyncPolicy.ON_FLUSH, MarkerWriter.FsyncPolicy.parse("ON_FLUSH"));
+        assertEquals(MarkerWriter.FsyncPolicy.ON_CLOSE, MarkerWriter.FsyncPolicy.parse(null));
+        assertEquals(MarkerWriter.FsyncPolicy.ON_CLOSE, MarkerWriter.FsyncPolicy.parse("on_flush"));
+        assertEquals(MarkerWriter.FsyncPolicy.ON_CLOSE, MarkerWriter.FsyncPolicy.parse("ALWAYS"));
+    }
+
+    @Test
+    public void inOrderMarkersAreAppended() throws IOException {
+        MarkerWriter writer = sorted(4);
+        writer.append("Track", "0:00:01");
+        writer.flush();
+        writer.append("Track", "0:00:02");
+        writer.append("Track", "0:00:03");
+        writer.close();
+        assertEquals("Track\n0:00:01\n0:00:02\n0:00:03\n", contents("Track"));
+        assertEquals(0, store.replaces);
+    }
+
+    @Test
+    public void outOfOrderMarkerReplacesTheFileAndWritingContinues() throws IOException {
+        MarkerWriter writer = sorted(4);
+        writer.append("Track", "0:00:01");
+        writer.append("Track", "0:00:05");
+        writer.flush();
+        writer.append("Track", "0:00:03");
+        writer.flush();
+        assertEquals(1, store.replaces);
+        assertEquals("Track\n0:00:01\n0:00:03\n0:00:05\n", contents("Track"));
+
+        // The swapped-in file is the one written to from now on
+        writer.append("Track", "0:00:07");
+        writer.append("Track", "0:00:02");
+        assertEquals(MarkerWriter.Outcome.DUPLICATE, writer.append("Track", "0:00:05"));
+        writer.close();
+        assertEquals("Track\n0:00:01\n0:00:02\n0:00:03\n0:00:05\n0:00:07\n", contents("Track"));
+        assertEquals(2, store.replaces);
+        assertEquals(0, store.reads);
+    }
+
+    @Test
+    public void positionsAreFormattedIntoTheFile() throws IOException {
+        MarkerWriter writer = new MarkerWriter(store, 4, MarkerWriter.FsyncPolicy.NEVER);
+        TimeFormatter millis = new TimeFormatter(true);
+        assertEquals(MarkerWriter.Outcome.CREATED, writer.append("Track", 5250, millis));
+        assertEquals(MarkerWriter.Outcome.APPENDED, writer.append("Track", 3_723_004, millis));
+        writer.close();
+        assertEquals("Track\n00:00:05.250\n01:02:03.004\n", contents("Track"));
+    }
+
+    @Test
+    public void sortedModeComparesPositionsAsWritten() throws IOException {
+        MarkerWriter writer = sorted(4);
+        TimeFormatter seconds = new TimeFormatter(false);
+        writer.append("Track", 9_100, seconds);
+        // 5.7 s and 5.2 s are both written as 00:00:05
+        assertEquals(MarkerWriter.Outcome.APPENDED, writer.append("Track", 5_700, seconds));
+        assertEquals(MarkerWriter.Outcome.DUPLICATE, writer.append("Track", 5_200, seconds));
+        writer.close();
+        assertEquals("Track\n00:00:05\n00:00:09\n", contents("Track"));
+    }
+
+    @Test
+    public void unsortedFileIsCompactedOnlyOnFirstOpen() throws IOException {
+        store.files.replace("Old", "Old\n0:00:09\n0:00:04\n".getBytes(StandardCharsets.UTF_8));
+        MarkerWriter writer = sorted(1);
+        writer.append("Old", "0:00:06");
+        // Evicting and reopening must not read the whole file again
+        for (int i = 0; i < 5; i++) {
+            writer.append("Other", "0:00:0" + i);
+            writer.append("Old", "0:01:0" + i);
+        }
+        writer.close();
+        assertEquals(1, store.reads);
+        assertEquals("Old\n0:00:04\n0:00:06\n0:00:09\n0:01:00\n0:01:01\n0:01:02\n0:01:03\n0:01:04\n",
+                contents("Old"));
+    }
+}
@@ -0,0 +1,113 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PositionEstimatorTest {
+
+    private static final long RES = PositionEstimator.POWERAMP_RESOLUTION_MS;
+
+    @Test
+    public void noEstimateBeforeFirstReport() {
+        PositionEstimator estimator = new PositionEstimator();
+        assertFalse(estimator.hasAnchor());
+        assertEquals(-1, estimator.estimate(1000));
+    }
+
+    @Test
+    public void noEstimateUntilPlayStateIsReported() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        assertTrue(estimator.hasAnchor());
+        assertEquals(-1, estimator.estimate(3000));
+        // Without a play state there is no prediction to measure drift against
+        estimator.onSync(12_000, RES, 3000);
+        assertEquals(0, estimator.getDriftSamples());
+
+        // A first report keeps the anchor, so playback counts from the last reading
+        estimator.setPlaying(true, 3500);
+        assertEquals(12_500, estimator.estimate(3500));
+    }
+
+    @Test
+    public void extrapolatesWhilePlaying() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        assertEquals(10_000, estimator.estimate(1000));
+        assertEquals(12_500, estimator.estimate(3500));
+        // A tap can predate the reading that answers it
+        assertEquals(9_800, estimator.estimate(800));
+        assertEquals(0, estimator.estimate(-20_000));
+    }
+
+    @Test
+    public void holdsPositionWhilePaused() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        estimator.setPlaying(false, 2000);
+        assertEquals(11_000, estimator.estimate(2000));
+        assertEquals(11_000, estimator.estimate(60_000));
+
+        estimator.setPlaying(true, 60_000);
+        assertEquals(11_500, estimator.estimate(60_500));
+    }
+
+    @Test
+    public void reportInsideResolutionKeepsEstimate() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        // True position 12_700 is reported as whole second 12_000
+        estimator.onSync(12_000, RES, 3700);
+        assertEquals(12_700, estimator.estimate(3700));
+        assertEquals(1, estimator.getDriftSamples());
+        assertEquals(0, estimator.getMeanDriftMs());
+        assertEquals(0, estimator.getReanchorCount());
+    }
+
+    @Test
+    public void reportOutsideResolutionReanchors() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        // Seek forward
+        estimator.onSync(60_000, RES, 2000);
+        assertEquals(60_000, estimator.estimate(2000));
+        assertEquals(1, estimator.getReanchorCount());
+        assertEquals(49_000, estimator.getMaxAbsDriftMs());
+        assertEquals(2000, estimator.getLastSyncTime());
+
+        StringBuilder trace = new StringBuilder();
+        TraceRecorder.get().dump(trace);
+        assertTrue(trace.toString().endsWith(" SYNC_DRIFT driftMs=49000 resolutionMs=1000\n"));
+    }
+
+    @Test
+    public void trackChangeReanchorsWithoutDrift() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(100_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        estimator.onTrackChanged(0, 5000);
+        assertEquals(1000, estimator.estimate(6000));
+        assertEquals(0, estimator.getDriftSamples());
+    }
+
+    @Test
+    public void speedScalesExtrapolation() {
+        PositionEstimator estimator = new PositionEstimator();
+        estimator.onSync(10_000, RES, 1000);
+        estimator.setPlaying(true, 1000);
+        estimator.setSpeed(1.5f, 2000);
+        assertEquals(11_000, estimator.estimate(2000));
+        assertEquals(14_000, estimator.estimate(4000));
+
+        estimator.setSpeed(0f, 4000);
+        assertEquals(1.5f, estimator.getSpeed(), 0f);
+        assertTrue(estimator.isPlaying());
+    }
+}
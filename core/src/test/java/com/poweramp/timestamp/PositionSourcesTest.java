@@ -0,0 +1,66 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class PositionSourcesTest {
+
+    private static PositionSource source(final String name, final long resolutionMs) {
+        return new PositionSource() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public long getResolutionMs() {
+                return resolutionMs;
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return true;
+            }
+
+            @Override
+            public void requestPosition() {
+            }
+        };
+    }
+
+    private final PositionSource session = source("session", 1);
+    private final PositionSource broadcast = source("broadcast", 1000);
+    private final PositionSources sources = new PositionSources(session, broadcast);
+
+    @Test
+    public void onlyRepliesAreLatencySamples() {
+        sources.onRequest(broadcast, 1000);
+        // A STATUS broadcast that happens to come in first is not the answer
+        sources.onReport(broadcast, 1010, false);
+        assertEquals(0, sources.transitMs(broadcast));
+        sources.onReport(broadcast, 1200, true);
+        assertEquals(100, sources.transitMs(broadcast));
+
+        // Nothing outstanding: a later reply does not count either
+        sources.onReport(broadcast, 5000, true);
+        assertEquals(100, sources.transitMs(broadcast));
+    }
+
+    @Test
+    public void unansweredRequestCountsAgainstItsSource() {
+        sources.onRequest(session, 0);
+        sources.onReport(session, 5, false);
+        // Pushed updates keep the session fresh, but its request has been open for 2 s
+        sources.onReport(broadcast, 1900, false);
+        sources.onReport(session, 1950, false);
+        assertSame(broadcast, sources.select(2000));
+    }
+
+    @Test
+    public void indexFollowsPreferenceOrder() {
+        assertEquals(0, sources.indexOf(session));
+        assertEquals(1, sources.indexOf(broadcast));
+    }
+}
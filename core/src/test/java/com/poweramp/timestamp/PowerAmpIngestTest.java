@@ -0,0 +1,51 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PowerAmpIngestTest {
+
+    // Well clear of the uptimes other tests feed the shared instance
+    private static final long BASE = 1L << 40;
+
+    private static PowerAmpEvent event(PowerAmpEvent.Kind kind, long positionMs, long uptime) {
+        return new PowerAmpEvent(kind, positionMs, "", "", false, false, uptime, uptime);
+    }
+
+    @Test
+    public void repeatedBroadcastIsDroppedWithinTheWindow() {
+        PowerAmpIngest ingest = PowerAmpIngest.get();
+        assertTrue(ingest.offer(event(PowerAmpEvent.Kind.STATUS, 1000, BASE)));
+        assertFalse(ingest.offer(event(PowerAmpEvent.Kind.STATUS, 1000, BASE + 10)));
+        assertTrue(ingest.offer(event(PowerAmpEvent.Kind.STATUS, 1000,
+                BASE + 20 + PowerAmpIngest.DUPLICATE_WINDOW_MS)));
+    }
+
+    @Test
+    public void everySyncReplyIsKept() {
+        PowerAmpIngest ingest = PowerAmpIngest.get();
+        long t = BASE + 10_000;
+        assertTrue(ingest.offer(event(PowerAmpEvent.Kind.POSITION_SYNC, 5000, t)));
+        // A second request answered within the same second of playback
+        assertTrue(ingest.offer(event(PowerAmpEvent.Kind.POSITION_SYNC, 5000, t + 200)));
+    }
+
+    @Test
+    public void everyIngestedKindIsMetered() {
+        CaptureMetrics metrics = CaptureMetrics.get();
+        RateMeter[] meters = {metrics.statusBroadcasts, metrics.trackBroadcasts, metrics.posSyncBroadcasts,
+                metrics.playingModeBroadcasts};
+        PowerAmpEvent.Kind[] kinds = PowerAmpEvent.Kind.values();
+        assertEquals(kinds.length, meters.length);
+        long t = BASE + 20_000;
+        for (PowerAmpEvent.Kind kind : kinds) {
+            RateMeter meter = meters[kind.ordinal()];
+            long before = meter.getTotal();
+            assertTrue(PowerAmpIngest.get().offer(event(kind, -1, t += 1000)));
+            assertEquals(kind.name(), before + 1, meter.getTotal());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.poweramp.timestamp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PowerAmp stand-in for running the ingestion path on a plain JVM.
+ *
+ * Keeps a true playback clock and, on its own thread, emits {@code STATUS_CHANGED},
+ * {@code TRACK_CHANGED} and {@code TPOS_SYNC} broadcasts plus media-notification reposts at
+ * the configured rates. Positions are whole seconds taken when PowerAmp "sends". Each broadcast
+ * is an action plus extras, parsed by {@link PowerAmpEvent#parse} and offered to
+ * {@link PowerAmpIngest} after a delivery delay with jitter, twice if {@code duplicates} is set
+ * (manifest and dynamic receiver), exactly as {@code PowerAmpReceiver} does. Notifications go to
+ * {@link PowerAmpIngest#offerNotification} like {@code PowerAmpNotificationListener}'s.
+ *
+ * It is also the {@link PositionSource} for the {@code API_COMMAND} position request: each
+ * request is answered with a {@code TPOS_SYNC} after {@code replyDelayMs} plus jitter.
+ */
+final class PowerAmpSimulator implements PositionSource {
+
+    static final class Config {
+        double statusPerSecond = 2;
+        double syncPerSecond = 1;
+        double notificationsPerSecond = 4;
+        long trackLengthMs = 180_000;
+        /** Pause for {@code pauseLengthMs} this often; 0 never pauses. */
+        long pauseEveryMs = 0;
+        long pauseLengthMs = 2000;
+        long deliveryDelayMs = 5;
+        long replyDelayMs = 30;
+        /** Uniform extra delay in {@code [0, jitterMs]} on every delivery and reply. */
+        long jitterMs = 20;
+        boolean duplicates = true;
+        long seed = 1;
+    }
+
+    private static final long ORIGIN = System.nanoTime();
+
+    /** Milliseconds since class load, standing in for {@code SystemClock.uptimeMillis()}. */
+    static long uptime() {
+        return (System.nanoTime() - ORIGIN) / 1_000_000 + 1;
+    }
+
+    private final Config config;
+    private final ScheduledExecutorService scheduler;
+    private final Random random;
+
+    // True playback clock; guarded by this
+    private long anchorPositionMs;
+    private long anchorTime;
+    private boolean playing;
+    private int trackNumber;
+
+    private long emitted;
+    private long requests;
+
+    PowerAmpSimulator(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+        scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "poweramp-sim");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    void start() {
+        synchronized (this) {
+            playing = true;
+            anchorTime = uptime();
+        }
+        changeTrack();
+        repeat(config.statusPerSecond, new Runnable() {
+            @Override
+            public void run() {
+                send(PowerAmpEvent.ACTION_STATUS_CHANGED, null);
+            }
+        });
+        repeat(config.syncPerSecond, new Runnable() {
+            @Override
+            public void run() {
+                send(PowerAmpEvent.ACTION_TRACK_POS_SYNC, null);
+            }
+        });
+        repeat(config.notificationsPerSecond, new Runnable() {
+            @Override
+            public void run() {
+                postNotification();
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                changeTrack();
+            }
+        }, config.trackLengthMs, config.trackLengthMs, TimeUnit.MILLISECONDS);
+        if (config.pauseEveryMs > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    setPlaying(false);
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            setPlaying(true);
+                        }
+                    }, config.pauseLengthMs, TimeUnit.MILLISECONDS);
+                }
+            }, config.pauseEveryMs, config.pauseEveryMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /** Where playback really was at {@code uptime}. */
+    synchronized long truePosition(long uptime) {
+        if (!playing || uptime <= anchorTime) return anchorPositionMs;
+        return anchorPositionMs + (uptime - anchorTime);
+    }
+
+    synchronized long getEmitted() {
+        return emitted;
+    }
+
+    synchronized long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public String getName() {
+        return "simulated tpos";
+    }
+
+    @Override
+    public long getResolutionMs() {
+        return PositionEstimator.POWERAMP_RESOLUTION_MS;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public void requestPosition() {
+        synchronized (this) {
+            requests++;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send(PowerAmpEvent.ACTION_TRACK_POS_SYNC, null);
+            }
+        }, config.replyDelayMs + jitter(), TimeUnit.MILLISECONDS);
+    }
+
+    private void repeat(double perSecond, Runnable task) {
+        if (perSecond <= 0) return;
+        long periodMicros = (long) (1_000_000 / perSecond);
+        scheduler.scheduleAtFixedRate(task, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void changeTrack() {
+        String title;
+        synchronized (this) {
+            trackNumber++;
+            anchorPositionMs = 0;
+            anchorTime = uptime();
+            title = "Simulated Artist - Track " + trackNumber;
+        }
+        send(PowerAmpEvent.ACTION_TRACK_CHANGED, title);
+        postNotification();
+    }
+
+    private void setPlaying(boolean nowPlaying) {
+        synchronized (this) {
+            long now = uptime();
+            anchorPositionMs = truePosition(now);
+            anchorTime = now;
+            playing = nowPlaying;
+        }
+        send(PowerAmpEvent.ACTION_STATUS_CHANGED, null);
+    }
+
+    /** Takes the reading now and delivers it later, like a broadcast in flight. */
+    private void send(final String action, String track) {
+        final Map<String, Object> extras = new HashMap<>();
+        synchronized (this) {
+            emitted++;
+            // PowerAmp's pos extra is whole seconds
+            extras.put("pos", (int) (truePosition(uptime()) / 1000));
+            if (action.equals(PowerAmpEvent.ACTION_STATUS_CHANGED)) extras.put("paused", !playing);
+        }
+        if (track != null) extras.put("track", track);
+        Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                PowerAmpIngest.get().offer(PowerAmpEvent.parse(action, new PowerAmpEvent.Extras() {
+                    @Override
+                    public Object get(String key) {
+                        return extras.get(key);
+                    }
+                }, uptime(), System.currentTimeMillis()));
+            }
+        };
+        long delay = config.deliveryDelayMs + jitter();
+        scheduler.schedule(deliver, delay, TimeUnit.MILLISECONDS);
+        if (config.duplicates) scheduler.schedule(deliver, delay + jitter(), TimeUnit.MILLISECONDS);
+    }
+
+    private void postNotification() {
+        String title;
+        synchronized (this) {
+            title = "Simulated Artist - Track " + trackNumber;
+        }
+        PowerAmpIngest.get().offerNotification(title, "", "", System.currentTimeMillis());
+    }
+
+    private synchronized long jitter() {
+        return config.jitterMs <= 0 ? 0 : (long) (random.nextDouble() * (config.jitterMs + 1));
+    }
+}
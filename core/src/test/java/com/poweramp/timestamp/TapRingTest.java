@@ -0,0 +1,78 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class TapRingTest {
+
+    private static final class Recorder implements TapRing.Sink {
+        final List<long[]> taps = new ArrayList<>();
+
+        @Override
+        public void onTap(long seq, long eventTime, int tag) {
+            taps.add(new long[] {seq, eventTime, tag});
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePowerOfTwo() {
+        new TapRing(12);
+    }
+
+    @Test
+    public void drainsInSequenceOrder() {
+        TapRing ring = new TapRing(8);
+        assertEquals(0, ring.offer(100, 0));
+        assertEquals(1, ring.offer(150, 1));
+        assertEquals(2, ring.offer(120, 0));
+        assertEquals(3, ring.size());
+
+        Recorder sink = new Recorder();
+        assertEquals(3, ring.drain(sink));
+        assertEquals(0, ring.size());
+        long[][] expected = {{0, 100, 0}, {1, 150, 1}, {2, 120, 0}};
+        assertEquals(expected.length, sink.taps.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i][0], sink.taps.get(i)[0]);
+            assertEquals(expected[i][1], sink.taps.get(i)[1]);
+            assertEquals(expected[i][2], sink.taps.get(i)[2]);
+        }
+        assertEquals(0, ring.drain(sink));
+    }
+
+    @Test
+    public void fullRingRejectsUntilDrained() {
+        TapRing ring = new TapRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, ring.offer(i, 0));
+        }
+        assertEquals(-1, ring.offer(99, 0));
+
+        Recorder sink = new Recorder();
+        ring.drain(sink);
+        assertEquals(4, ring.offer(4, 0));
+        ring.drain(sink);
+        assertEquals(5, sink.taps.size());
+        assertEquals(4, sink.taps.get(4)[0]);
+    }
+
+    @Test
+    public void wrapsAroundManyTimes() {
+        TapRing ring = new TapRing(4);
+        Recorder sink = new Recorder();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, ring.offer(i * 10L, i & 1));
+            if (i % 3 == 2) ring.drain(sink);
+        }
+        ring.drain(sink);
+        assertEquals(1000, sink.taps.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, sink.taps.get(i)[0]);
+            assertEquals(i * 10L, sink.taps.get(i)[1]);
+            assertEquals(i & 1, sink.taps.get(i)[2]);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.poweramp.timestamp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import org.junit.Test;
+
+public class TimeFormatterTest {
+
+    /** The formatting {@link TimeFormatter} replaced, from the original service. */
+    private static String legacyFormat(long milliseconds) {
+        long seconds = milliseconds / 1000;
+        long hours = seconds / 3600;
+        long minutes = (seconds % 3600) / 60;
+        long secs = seconds % 60;
+        return String.format(Locale.US, "%02d:%02d:%02d", hours, minutes, secs);
+    }
+
+    @Test
+    public void secondsModeMatchesStringFormat() {
+        long[] table = {
+            0, 1, 999, 1000, 59_999, 60_000, 61_001, 599_999, 600_000, 3_599_999, 3_600_000,
+            35_999_999, 36_000_000, 86_399_999, 86_400_000, 359_999_999, 360_000_000,
+            99 * 3_600_000L + 3_599_999, 100 * 3_600_000L, 999 * 3_600_000L + 59_000,
+            1000 * 3_600_000L, Integer.MAX_VALUE, Integer.MAX_VALUE + 1L, Long.MAX_VALUE / 2, Long.MAX_VALUE,
+        };
+        TimeFormatter formatter = new TimeFormatter(false);
+        char[] chars = new char[TimeFormatter.MAX_LENGTH];
+        byte[] bytes = new byte[TimeFormatter.MAX_LENGTH];
+        for (long ms : table) {
+            String expected = legacyFormat(ms);
+            assertEquals(expected, formatter.format(ms));
+            assertEquals(expected, new String(chars, 0, formatter.format(ms, chars, 0)));
+            byte[] legacyBytes = expected.getBytes(StandardCharsets.UTF_8);
+            int length = formatter.format(ms, bytes, 0);
+            assertEquals(expected, legacyBytes.length, length);
+            for (int i = 0; i < length; i++) {
+                assertEquals(expected, legacyBytes[i], bytes[i]);
+            }
+        }
+    }
+
+    @Test
+    public void secondsModeMatchesStringFormatUpToHundredHours() {
+        TimeFormatter formatter = new TimeFormatter(false);
+        for (long ms = 0; ms <= 100 * 3_600_000L; ms += 997) {
+            assertEquals(legacyFormat(ms), formatter.format(ms));
+        }
+    }
+
+    @Test
+    public void secondsMode() {
+        TimeFormatter formatter = new TimeFormatter(false);
+        assertEquals("00:00:00", formatter.format(0));
+        assertEquals("00:00:00", formatter.format(999));
+        assertEquals("00:01:05", formatter.format(65_432));
+        assertEquals("01:00:00", formatter.format(3_600_000));
+        assertEquals("123:45:06", formatter.format((123 * 3600 + 45 * 60 + 6) * 1000L));
+        assertEquals("00:00:00", formatter.format(-5000));
+    }
+
+    @Test
+    public void millisMode() {
+        TimeFormatter formatter = new TimeFormatter(true);
+        assertEquals("00:00:00.000", formatter.format(0));
+        assertEquals("00:01:05.432", formatter.format(65_432));
+        assertEquals("02:03:04.007", formatter.format(((2 * 60 + 3) * 60 + 4) * 1000L + 7));
+    }
+
+    @Test
+    public void longestOutputFits() {
+        TimeFormatter formatter = new TimeFormatter(true);
+        assertEquals(TimeFormatter.MAX_LENGTH, formatter.format(Long.MAX_VALUE).length());
+    }
+
+    @Test
+    public void writesIntoBuffersAtOffset() {
+        TimeFormatter formatter = new TimeFormatter(true);
+        char[] chars = new char[4 + TimeFormatter.MAX_LENGTH];
+        int length = formatter.format(3_723_004, chars, 4);
+        assertEquals("01:02:03.004", new String(chars, 4, length));
+
+        byte[] bytes = new byte[2 + TimeFormatter.MAX_LENGTH];
+        length = formatter.format(3_723_004, bytes, 2);
+        assertEquals("01:02:03.004", new String(bytes, 2, length, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void parsesBothModes() {
+        assertEquals(65_000, TimeFormatter.parse("00:01:05"));
+        assertEquals(65_432, TimeFormatter.parse(" 00:01:05.432\r"));
+        assertEquals((123 * 3600 + 45 * 60 + 6) * 1000L, TimeFormatter.parse("123:45:06"));
+        assertEquals(-1, TimeFormatter.parse("Artist - Title"));
+        assertEquals(-1, TimeFormatter.parse("00:60:00"));
+        assertEquals(-1, TimeFormatter.parse("00:01:05.43"));
+        assertEquals(-1, TimeFormatter.parse(""));
+    }
+
+    @Test
+    public void parseInvertsFormat() {
+        TimeFormatter seconds = new TimeFormatter(false);
+        TimeFormatter millis = new TimeFormatter(true);
+        for (long ms = 0; ms < 400 * 3_600_000L; ms += 987_654_321L / 1000) {
+            assertEquals(ms, TimeFormatter.parse(millis.format(ms)));
+            assertEquals(ms / 1000 * 1000, TimeFormatter.parse(seconds.format(ms)));
+            assertEquals(seconds.readBack(ms), TimeFormatter.parse(seconds.format(ms)));
+            assertEquals(millis.readBack(ms), TimeFormatter.parse(millis.format(ms)));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.poweramp.timestamp;
+
+/**
+ * JUnit category for tests that run for seconds of real time or assert on wall-clock timings.
+ * They are left out of {@code gradle :core:test}, where a busy host makes them slow and flaky,
+ * and run by {@code gradle :core:timingTest}.
+ */
+public interface TimingSensitive {
+}